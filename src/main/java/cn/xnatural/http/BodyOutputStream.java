@@ -0,0 +1,208 @@
+package cn.xnatural.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 响应体输出流
+ * 数据先写入缓冲区(每个线程复用一个, 流式响应单独分配): 关闭时数据全在缓冲区内, 则用 Content-Length 一次发送;
+ * 超出缓冲区, 则切换为 chunked 分块发送
+ */
+class BodyOutputStream extends OutputStream {
+    /**
+     * chunk 头预留: 最多8位16进制长度 + \r\n
+     */
+    protected static final int                 HEAD = 10;
+    protected static final byte[]              END  = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    /**
+     * 缓冲区池: 每个线程一个, 使用时取出, 用完放回
+     */
+    protected static final ThreadLocal<byte[]> POOL = new ThreadLocal<>();
+    protected final HttpContext                hCtx;
+    /**
+     * [chunk头预留 | 数据 | \r\n]
+     */
+    protected       byte[]                     buf;
+    /**
+     * 数据区结束位置
+     */
+    protected final int                        limit;
+    protected       int                        pos  = HEAD;
+    /**
+     * 是否已切换为 chunked
+     */
+    protected       boolean                    chunked;
+    protected       boolean                    closed;
+    /**
+     * 缓冲区是否来自池
+     */
+    protected final boolean                    pooled;
+
+
+    /**
+     * 创建
+     * @param hCtx {@link HttpContext}
+     */
+    BodyOutputStream(HttpContext hCtx) { this(hCtx, true); }
+
+
+    /**
+     * 创建
+     * @param hCtx {@link HttpContext}
+     * @param pooled 是否使用池中缓冲区. 长时间或跨线程使用时为 false
+     */
+    BodyOutputStream(HttpContext hCtx, boolean pooled) {
+        this.hCtx = hCtx;
+        this.pooled = pooled;
+        int size = hCtx.server.getInteger("responseBufferSize", 1024 * 64);
+        byte[] bs = pooled ? POOL.get() : null;
+        if (bs != null && bs.length == HEAD + size + 2) POOL.set(null);
+        else bs = new byte[HEAD + size + 2];
+        this.buf = bs;
+        this.limit = HEAD + size;
+    }
+
+
+    @Override
+    public void write(int b) throws IOException {
+        if (pos == limit) flushChunk();
+        buf[pos++] = (byte) b;
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (pos == limit) flushChunk();
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(b, off, buf, pos, n);
+            pos += n; off += n; len -= n;
+        }
+    }
+
+
+    /**
+     * 缓冲区满: 切换为 chunked 并发送一块
+     */
+    protected void flushChunk() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (!chunked) {
+            chunked = true;
+            hCtx.response.transferEncoding("chunked");
+            hCtx.aioStream.write(hCtx.preResp());
+        }
+        int len = pos - HEAD;
+        if (len <= 0) return;
+        String hex = Integer.toHexString(len);
+        int start = HEAD - hex.length() - 2;
+        for (int i = 0; i < hex.length(); i++) buf[start + i] = (byte) hex.charAt(i);
+        buf[HEAD - 2] = '\r'; buf[HEAD - 1] = '\n';
+        buf[pos] = '\r'; buf[pos + 1] = '\n';
+        hCtx.aioStream.write(ByteBuffer.wrap(buf, start, pos + 2 - start));
+        pos = HEAD;
+    }
+
+
+    /**
+     * 结束响应: 未切换 chunked 时用 Content-Length 发送
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            if (chunked) {
+                flushChunk();
+                hCtx.aioStream.write(ByteBuffer.wrap(END));
+            } else if (!hCtx.etag(buf, HEAD, pos - HEAD)) {
+                hCtx.response.contentLengthIfNotSet(pos - HEAD);
+                hCtx.aioStream.write(hCtx.preResp());
+                if (pos > HEAD) hCtx.aioStream.write(ByteBuffer.wrap(buf, HEAD, pos - HEAD));
+            }
+        } finally {
+            closed = true;
+            release();
+        }
+    }
+
+
+    /**
+     * 缓冲区放回池中. 异常中断时调用
+     */
+    void release() {
+        if (buf == null) return;
+        if (pooled) POOL.set(buf);
+        buf = null;
+        closed = true;
+    }
+
+
+    /**
+     * 字符输出: UTF-8 直接编码到缓冲区, 其它字符集用 {@link OutputStreamWriter}
+     * @param charset 字符集
+     * @return {@link Writer}
+     */
+    Writer writer(Charset charset) {
+        return StandardCharsets.UTF_8.equals(charset) ? new Utf8Writer() : new OutputStreamWriter(this, charset);
+    }
+
+
+    /**
+     * UTF-8 编码写入
+     */
+    protected class Utf8Writer extends Writer {
+        /**
+         * 上次写入末尾的高代理字符
+         */
+        char high;
+
+        @Override
+        public void write(char[] cs, int off, int len) throws IOException {
+            for (int i = off, end = off + len; i < end; i++) {
+                char c = cs[i];
+                if (pos + 4 > limit) flushChunk();
+                if (high != 0) {
+                    if (Character.isLowSurrogate(c)) {
+                        int cp = Character.toCodePoint(high, c);
+                        buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                        buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                        buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                        buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+                        high = 0;
+                        continue;
+                    }
+                    buf[pos++] = '?'; // 单独的高代理
+                    high = 0;
+                    if (pos + 3 > limit) flushChunk();
+                }
+                if (c < 0x80) buf[pos++] = (byte) c;
+                else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xc0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c)) high = c;
+                else if (Character.isLowSurrogate(c)) buf[pos++] = '?';
+                else {
+                    buf[pos++] = (byte) (0xe0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() throws IOException {
+            if (high != 0) {
+                high = 0;
+                BodyOutputStream.this.write('?');
+            }
+            BodyOutputStream.this.close();
+        }
+    }
+}
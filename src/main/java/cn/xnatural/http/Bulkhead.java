@@ -0,0 +1,70 @@
+package cn.xnatural.http;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 隔离舱: 限制一个路由或一个前缀下所有路由的并发执行数
+ * 超过限制的请求直接拒绝(503), 不排队占用线程
+ * 路由: /test/report, 前缀: /test/*
+ */
+public class Bulkhead {
+    protected final String    name;
+    /**
+     * 最大并发数
+     */
+    protected final int       max;
+    protected final Semaphore semaphore;
+    /**
+     * 拒绝计数
+     */
+    protected final LongAdder rejected = new LongAdder();
+
+
+    Bulkhead(String name, int max) {
+        this.name = name;
+        this.max = max;
+        this.semaphore = new Semaphore(max);
+    }
+
+
+    /**
+     * 尝试进入, 不等待
+     * @return true: 进入成功
+     */
+    boolean tryAcquire() {
+        if (semaphore.tryAcquire()) return true;
+        rejected.increment();
+        return false;
+    }
+
+
+    /**
+     * 退出
+     */
+    void release() { semaphore.release(); }
+
+
+    public String getName() { return name; }
+
+
+    public int getMax() { return max; }
+
+
+    /**
+     * @return 当前执行数
+     */
+    public int getInUse() { return max - semaphore.availablePermits(); }
+
+
+    /**
+     * @return 拒绝总数
+     */
+    public long getRejected() { return rejected.sum(); }
+
+
+    @Override
+    public String toString() {
+        return "Bulkhead[" + name + ", max: " + max + ", inUse: " + getInUse() + ", rejected: " + getRejected() + "]";
+    }
+}
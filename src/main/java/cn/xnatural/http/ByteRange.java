@@ -0,0 +1,70 @@
+package cn.xnatural.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 请求 Range 的一个字节区间 [start, end]
+ */
+class ByteRange {
+    /**
+     * 一个请求最多的区间数, 超过则忽略 Range
+     */
+    protected static final int MAX = 16;
+    final long start;
+    /**
+     * 包含
+     */
+    final long end;
+
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+
+    long length() { return end - start + 1; }
+
+
+    /**
+     * 解析 Range header. 例: bytes=0-499, 500-, -200
+     * @param range Range header 值
+     * @param length 内容总长度
+     * @return null: 格式错误或区间太多(忽略 Range, 发送全部内容); 空: 没有可满足的区间(416)
+     */
+    static List<ByteRange> parse(String range, long length) {
+        range = range.trim();
+        if (!range.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+        String[] specs = range.substring(6).split(",");
+        if (specs.length > MAX) return null;
+        List<ByteRange> ls = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int i = spec.indexOf('-');
+                if (i < 0) return null;
+                String first = spec.substring(0, i).trim(), last = spec.substring(i + 1).trim();
+                long start, end;
+                if (first.isEmpty()) { // 后缀: 最后 n 个字节
+                    long n = Long.parseLong(last);
+                    if (n <= 0) continue;
+                    start = Math.max(0, length - n);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                    if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) return null;
+                }
+                if (start < length && start <= end) ls.add(new ByteRange(start, end));
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return ls;
+    }
+
+
+    @Override
+    public String toString() { return start + "-" + end; }
+}
@@ -22,6 +22,14 @@ public class Chain {
      * 子Chain: path(前缀) -> {@link Chain}
      */
     protected final        Map<String, Chain>  subChains = new ConcurrentHashMap<>(7);
+    /**
+     * 编译好的路由树 {@link #compile()}
+     */
+    protected volatile     Router              router;
+    /**
+     * 此Chain(前缀)下所有路由的最大并发数 {@link Bulkhead}
+     */
+    protected              int                 concurrency;
 
 
     public Chain(HttpServer server) { this.server = server; }
@@ -32,40 +40,72 @@ public class Chain {
      * @param hCtx {@link HttpContext}
      */
     protected void handle(HttpContext hCtx) {
-        boolean match = false;
-        for (Handler h: handlers) { // 遍历查找匹配的Handler
-            if (h instanceof FilterHandler) { // 执行Filter, 可执行多个Filter
+        Router r = router();
+        Router.Route route = r.match(hCtx);
+        log.trace((route != null ? "Matched" : "Unmatch") + " {}, {}", route != null ? route.handler.path() : null, hCtx.request.getPath());
+        hCtx.route = route;
+        if (route != null && !hCtx.acquire()) { // 超过并发限制
+            hCtx.response.status(503);
+            log.warn("Request {}({}). id: {}, url: {}", HttpResponse.statusMsg.get(hCtx.response.status), hCtx.response.status, hCtx.request.getId(), hCtx.request.getRowUrl());
+            hCtx.render(ApiResp.fail("server busy, please wait..."));
+            return;
+        }
+        boolean timed = route != null && route.timeout > 0;
+        if (timed) {
+            hCtx.deadline(route.timeout);
+            hCtx.running(Thread.currentThread());
+        }
+        try {
+            // 执行Filter, 可执行多个Filter
+            final FilterHandler[] filters = route != null ? route.filters : r.filters(hCtx.request.getPath());
+            for (int i = 0; i < filters.length; i++) {
                 try {
-                    hCtx.passedHandler.add(h);
-                    h.handle(hCtx);
+                    filters[i].handle(hCtx);
                 } catch (Throwable ex) {server.errHandle(ex, hCtx);}
-            } else if (h instanceof PathHandler) { //只执行一个Path
-                match = h.match(hCtx);
-                log.trace((match ? "Matched" : "Unmatch") + " {}, {}", ((PathHandler) h).path(), hCtx.request.getPath());
-                if (match) {
-                    try {
-                        hCtx.passedHandler.add(h);
-                        h.handle(hCtx);
-                    } catch (Throwable ex) {server.errHandle(ex, hCtx);}
-                    break;
-                }
-            } else throw new RuntimeException("Unknown Handler type: " + h.getClass().getName());
-            // 退出条件
-            if (hCtx.response.commit.get()) break;
-        }
-        if (hCtx.response.commit.get()) return;
-        if (!match) { // 未找到匹配
-            hCtx.response.statusIfNotSet(404);
-            log.warn("Request {}({}). id: {}, url: {}", HttpResponse.statusMsg.get(hCtx.response.status), hCtx.response.status, hCtx.request.getId(), hCtx.request.getRowUrl());
-            hCtx.render();
-            hCtx.close();
-        } else if (hCtx.response.status != null) { // 已经设置了status
-            log.warn("Request {}({}). id: {}, url: {}", HttpResponse.statusMsg.get(hCtx.response.status), hCtx.response.status, hCtx.request.getId(), hCtx.request.getRowUrl());
-            hCtx.render();
+                // 退出条件
+                if (hCtx.response.commit.get()) return;
+            }
+            if (route == null) { // 未找到匹配
+                hCtx.response.statusIfNotSet(404);
+                log.warn("Request {}({}). id: {}, url: {}", HttpResponse.statusMsg.get(hCtx.response.status), hCtx.response.status, hCtx.request.getId(), hCtx.request.getRowUrl());
+                hCtx.render();
+                hCtx.close();
+                return;
+            }
+            try { //只执行一个Path
+                route.handler.matched(hCtx);
+                route.handler.handle(hCtx);
+            } catch (Throwable ex) {server.errHandle(ex, hCtx);}
+            if (hCtx.response.commit.get() || hCtx.pending != null) return;
+            if (hCtx.response.status != null) { // 已经设置了status
+                log.warn("Request {}({}). id: {}, url: {}", HttpResponse.statusMsg.get(hCtx.response.status), hCtx.response.status, hCtx.request.getId(), hCtx.request.getRowUrl());
+                hCtx.render();
+            }
+        } finally {
+            if (timed) hCtx.running(null);
+            if (hCtx.pending == null) hCtx.release(); // 异步响应完成时释放
         }
     }
 
 
+    /**
+     * 编译路由树
+     * 所有Handler添加完成后调用, 之后添加的Handler 需再次调用才生效
+     * @return {@link Router}
+     */
+    protected Router compile() { return router = new Router(this); }
+
+
+    /**
+     * 当前路由树, 未编译则编译
+     * @return {@link Router}
+     */
+    protected Router router() {
+        Router r = router;
+        return r == null ? compile() : r;
+    }
+
+
     /**
      * 添加Handler
      * 按优先级添加, 相同类型比较, FilterHandler > PathHandler
@@ -113,6 +153,23 @@ public class Chain {
      * @return {@link Chain}
      */
     public Chain method(String method, String path, String[] contentTypes, String produce, Handler handler) {
+        return method(method, path, contentTypes, produce, 0, 0, false, handler);
+    }
+
+
+    /**
+     * 指定方法,路径,最大并发数,超时时间,ETag处理器
+     * @param method get, post, delete ...
+     * @param path 匹配路径
+     * @param contentTypes 请求Content-Type: application/json, multipart/form-data, application/x-www-form-urlencoded, text/plain
+     * @param produce 响应Content-Type: application/json, text/plain, text/html, image/x-icon 等等
+     * @param concurrency 最大并发执行数, 超过时响应 503. 0: 不限制 {@link Bulkhead}
+     * @param timeout 执行超时时间, 超时响应 504. 单位: 毫秒. 0: 不限制
+     * @param etag 是否自动生成弱 ETag, 请求 If-None-Match 一致时响应 304
+     * @param handler 处理器
+     * @return {@link Chain}
+     */
+    public Chain method(String method, String path, String[] contentTypes, String produce, int concurrency, long timeout, boolean etag, Handler handler) {
         if (path == null || path.isEmpty()) throw new IllegalArgumentException("path mut not be empty");
         if (contentTypes != null && contentTypes.length > 0 && Arrays.stream(contentTypes).anyMatch(s -> s == null || s.isEmpty())) throw new IllegalArgumentException("@Path consumer config error");
         return add(new PathHandler() {
@@ -125,38 +182,48 @@ public class Chain {
             String path() { return path; }
 
             @Override
-            public boolean match(HttpContext hCtx) {
-                boolean matched = super.match(hCtx);
-                if (!matched) return false;
-                if (method != null && !method.isEmpty() && !method.equalsIgnoreCase(hCtx.request.method)) {
-                    hCtx.response.status(405); hCtx.pathToken.clear();
-                    return false;
-                }
+            int reject(HttpContext hCtx) {
+                if (method != null && !method.isEmpty() && !method.equalsIgnoreCase(hCtx.request.method)) return 405;
                 if (contentTypes != null && contentTypes.length > 0) {
-                    boolean f = false;
                     String ct = hCtx.request.getContentType(); // 匹配请求的Content-Type
                     if (ct != null) {
                         for (String contentType: contentTypes) {
-                            if (contentType.split(";")[0].equalsIgnoreCase(ct.split(";")[0])) {
-                                f = true; break;
-                            }
+                            if (contentType.split(";")[0].equalsIgnoreCase(ct.split(";")[0])) return 0;
                         }
                     }
-                    if (!f) {
-                        hCtx.response.status(415); hCtx.pathToken.clear();
-                        return false;
-                    }
-                }
-                if (hCtx.response.status != null && (415 == hCtx.response.status || 405 == hCtx.response.status)) {
-                    hCtx.response.status = null; // 重新找到匹配的Handler
+                    return 415;
                 }
+                return 0;
+            }
+
+            @Override
+            void matched(HttpContext hCtx) {
                 if (produce != null && !produce.isEmpty()) hCtx.response.contentType(produce);
-                return true;
             }
+
+            @Override
+            int concurrency() { return concurrency; }
+
+            @Override
+            long timeout() { return timeout; }
+
+            @Override
+            boolean etag() { return etag; }
         });
     }
 
 
+    /**
+     * 限制此Chain(前缀)下所有路由的并发执行数, 超过时响应 503 {@link Bulkhead}
+     * @param max 最大并发数. 0: 不限制
+     * @return {@link Chain}
+     */
+    public Chain concurrency(int max) {
+        this.concurrency = max;
+        return this;
+    }
+
+
     /**
      * 添加 websocket Handler
      * @return {@link Chain}
@@ -174,12 +241,37 @@ public class Chain {
     }
 
 
+    /**
+     * 添加 Server-Sent Events Handler(get): 先响应 text/event-stream, 再执行 handler
+     * handler 中用 {@link HttpContext#sse()} 取 {@link SseEmitter}
+     * @return {@link Chain}
+     */
+    public Chain sse(String path, Handler handler) {
+        return get(path, hCtx -> {
+            hCtx.sse();
+            handler.handle(hCtx);
+        });
+    }
+
+
     /**
      * 添加Filter, 默认匹配
      * @param handler {@link Handler}
      * @return {@link Chain}
      */
     public Chain filter(Handler handler, int order) {
+        return filter(null, handler, order);
+    }
+
+
+    /**
+     * 添加限定路径的Filter
+     * 编译路由树时 解析到每个路由的Filter数组 {@link Router}
+     * @param paths 限定路径(相对于此Chain的前缀), 按路径前缀匹配. null 或 空: 所有路径
+     * @param handler {@link Handler}
+     * @return {@link Chain}
+     */
+    public Chain filter(String[] paths, Handler handler, int order) {
         return add(new FilterHandler() {
             @Override
             public void handle(HttpContext ctx) throws Throwable {
@@ -188,6 +280,9 @@ public class Chain {
 
             @Override
             public double getOrder() { return order; }
+
+            @Override
+            String[] paths() { return paths; }
         });
     }
 
@@ -217,6 +312,7 @@ public class Chain {
      * 相同的prefix用同一个Chain
      * 如果前缀包含多个路径, 则拆开每个路径都对应一个Chain
      * 例: 前缀: a/b, a/c a对应的Chain下边有两个子Chain b和c
+     * 编译路由树时子Chain的Handler路径会展开成完整路径 {@link Router}
      * @param prefix 路径前缀
      * @param handlerBuilder mvc执行链builder
      * @return {@link Chain}
@@ -224,34 +320,7 @@ public class Chain {
     public Chain prefix(final String prefix, final Consumer<Chain> handlerBuilder) {
         Chain subChain = this;
         for (String singlePrefix : Handler.extract(prefix).split("/")) { // 折成单路径(没有/分割的路径片)
-            Chain parentChain = subChain;
             subChain = subChain.subChains.computeIfAbsent(singlePrefix, s -> new Chain(server));
-            Chain finalSubChain = subChain;
-            parentChain.add(new PathHandler() {
-                final Chain chain = finalSubChain;
-                @Override
-                String path() { return singlePrefix; }
-
-                @Override
-                public boolean match(HttpContext hCtx) {
-                    boolean f = false;
-                    for (int i = 0; i < pieces().length; i++) {
-                        f = (pieces()[i].equals(hCtx.pieces.get(i)));
-                        if (!f) break;
-                    }
-                    if (f) {
-                        for (int i = 0; i < pieces().length; i++) {
-                            hCtx.pieces.pop();
-                        }
-                    }
-                    return f;
-                }
-
-                @Override
-                public void handle(HttpContext ctx) {
-                    chain.handle(ctx);
-                }
-            });
         }
         handlerBuilder.accept(subChain);
         return this;
@@ -0,0 +1,177 @@
+package cn.xnatural.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 响应压缩输出流(gzip, deflate), 压缩后写入 {@link BodyOutputStream}
+ * 数据不足 compress.minSize 时不压缩, 原样发送
+ * {@link Deflater} 每个线程复用一个
+ */
+class CompressOutputStream extends OutputStream {
+    protected static final byte[]                GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    /**
+     * gzip 用不带 zlib 头的 {@link Deflater}
+     */
+    protected static final ThreadLocal<Deflater> GZIP        = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    protected static final ThreadLocal<Deflater> DEFLATE     = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, false));
+    protected static final ThreadLocal<byte[]>   OUT         = ThreadLocal.withInitial(() -> new byte[1024 * 8]);
+    protected final BodyOutputStream             out;
+    /**
+     * gzip 或 deflate
+     */
+    protected final String                       encoding;
+    /**
+     * 开始压缩之前的数据
+     */
+    protected final byte[]                       pending;
+    protected       int                          count;
+    protected       Deflater                     deflater;
+    protected       CRC32                        crc;
+    protected       boolean                      closed;
+
+
+    /**
+     * 创建
+     * @param out {@link BodyOutputStream}
+     * @param encoding gzip 或 deflate
+     * @param minSize 最小压缩长度. 0: 直接压缩
+     */
+    CompressOutputStream(BodyOutputStream out, String encoding, int minSize) throws IOException {
+        this.out = out;
+        this.encoding = encoding;
+        this.pending = minSize > 0 ? new byte[minSize] : null;
+        if (pending == null) start();
+    }
+
+
+    /**
+     * 协商响应压缩方式: 配置开启, 请求 Accept-Encoding 接受, 响应 Content-Type 可压缩
+     * @param hCtx {@link HttpContext}
+     * @return gzip, deflate 或 null: 不压缩
+     */
+    static String negotiate(HttpContext hCtx) {
+        HttpServer server = hCtx.server;
+        if (!server.getBoolean("compress", true)) return null;
+        if (hCtx.response.header("content-encoding") != null) return null;
+        String ct = hCtx.response.getContentType();
+        if (ct == null || !compressible(server, ct)) return null;
+        return accept(hCtx.request.getAcceptEncoding());
+    }
+
+
+    /**
+     * 响应类型是否可压缩. compress.types 配置, 前缀匹配
+     */
+    static boolean compressible(HttpServer server, String contentType) {
+        String ct = contentType.toLowerCase();
+        for (String type : server._compressTypes.get()) {
+            if (ct.startsWith(type)) return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * 解析 Accept-Encoding, 优先 gzip
+     * @param acceptEncoding 例: gzip, deflate, br;q=0.9
+     * @return gzip, deflate 或 null
+     */
+    static String accept(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) return null;
+        boolean gzip = false, deflate = false;
+        for (String item : acceptEncoding.toLowerCase().split(",")) {
+            String[] arr = item.split(";");
+            String name = arr[0].trim();
+            boolean zero = arr.length > 1 && arr[1].trim().matches("q\\s*=\\s*0(\\.0*)?");
+            if (zero) continue;
+            if ("gzip".equals(name) || "*".equals(name)) gzip = true;
+            else if ("deflate".equals(name)) deflate = true;
+        }
+        return gzip ? "gzip" : deflate ? "deflate" : null;
+    }
+
+
+    /**
+     * 开始压缩: 设置响应头, 写 gzip 头
+     */
+    protected void start() throws IOException {
+        HttpResponse response = out.hCtx.response;
+        response.header("content-encoding", encoding);
+        response.header("vary", "Accept-Encoding");
+        response.headers.remove("content-length");
+        deflater = "gzip".equals(encoding) ? GZIP.get() : DEFLATE.get();
+        deflater.reset();
+        deflater.setLevel(out.hCtx.server.getInteger("compress.level", Deflater.DEFAULT_COMPRESSION));
+        if ("gzip".equals(encoding)) {
+            crc = new CRC32();
+            out.write(GZIP_HEADER);
+        }
+    }
+
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (len <= 0) return;
+        if (deflater == null) {
+            if (count + len <= pending.length) { // 还不够压缩长度
+                System.arraycopy(b, off, pending, count, len);
+                count += len;
+                return;
+            }
+            start();
+            if (count > 0) deflate(pending, 0, count);
+        }
+        deflate(b, off, len);
+    }
+
+
+    protected void deflate(byte[] b, int off, int len) throws IOException {
+        if (crc != null) crc.update(b, off, len);
+        deflater.setInput(b, off, len);
+        byte[] buf = OUT.get();
+        while (!deflater.needsInput()) {
+            int n = deflater.deflate(buf, 0, buf.length, Deflater.NO_FLUSH);
+            if (n > 0) out.write(buf, 0, n);
+        }
+    }
+
+
+    /**
+     * 结束压缩并结束响应
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (deflater == null) { // 数据太少不压缩
+            if (count > 0) out.write(pending, 0, count);
+            out.close();
+            return;
+        }
+        deflater.finish();
+        byte[] buf = OUT.get();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            if (n > 0) out.write(buf, 0, n);
+        }
+        if (crc != null) { // gzip 尾: crc32, 原始长度
+            long v = crc.getValue(), size = deflater.getBytesRead();
+            out.write(new byte[]{
+                    (byte) v, (byte) (v >> 8), (byte) (v >> 16), (byte) (v >> 24),
+                    (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+            });
+        }
+        deflater.reset();
+        out.close();
+    }
+}
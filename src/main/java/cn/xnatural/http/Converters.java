@@ -0,0 +1,147 @@
+package cn.xnatural.http;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 参数类型转换器注册表
+ * 内置: String, 基本类型及其包装类, BigInteger, BigDecimal, URI, URL, 枚举, 数组, {@link FileData}
+ * 自定义类型: {@link HttpServer#converter(Class, Function)}
+ */
+public class Converters {
+    /**
+     * 内置转换器
+     */
+    protected static final Map<Class<?>, Function<Object, ?>> BUILTIN;
+    /**
+     * 只包含内置转换器的实例 {@link HttpContext#to(Object, Class)}
+     */
+    static final Converters                                   DEFAULT;
+    /**
+     * 已注册的转换器: 类型 -> 转换函数
+     */
+    protected final Map<Class<?>, Function<Object, ?>>        converters = new ConcurrentHashMap<>(BUILTIN);
+    /**
+     * 已生成的转换函数(包含 枚举, 数组等派生类型)
+     */
+    protected final Map<Class<?>, Function<Object, ?>>        compiled   = new ConcurrentHashMap<>();
+
+
+    static {
+        Map<Class<?>, Function<Object, ?>> m = new HashMap<>();
+        m.put(String.class, Object::toString);
+        m.put(Boolean.class, v -> Boolean.valueOf(v.toString())); m.put(boolean.class, m.get(Boolean.class));
+        m.put(Short.class, v -> Short.valueOf(v.toString())); m.put(short.class, m.get(Short.class));
+        m.put(Integer.class, v -> Integer.valueOf(v.toString())); m.put(int.class, m.get(Integer.class));
+        m.put(Long.class, v -> Long.valueOf(v.toString())); m.put(long.class, m.get(Long.class));
+        m.put(Double.class, v -> Double.valueOf(v.toString())); m.put(double.class, m.get(Double.class));
+        m.put(Float.class, v -> Float.valueOf(v.toString())); m.put(float.class, m.get(Float.class));
+        m.put(BigInteger.class, v -> new BigInteger(v.toString()));
+        m.put(BigDecimal.class, v -> new BigDecimal(v.toString()));
+        m.put(URI.class, v -> URI.create(v.toString()));
+        m.put(java.net.URL.class, v -> {
+            try {
+                return URI.create(v.toString()).toURL();
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        BUILTIN = Collections.unmodifiableMap(m);
+        DEFAULT = new Converters();
+    }
+
+
+    /**
+     * 添加(覆盖)类型转换器
+     * @param type 目标类型
+     * @param fn 转换函数. 入参不为空
+     * @return {@link Converters}
+     */
+    public <T> Converters register(Class<T> type, Function<Object, T> fn) {
+        if (type == null) throw new IllegalArgumentException("Param type required");
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        converters.put(type, fn);
+        compiled.clear();
+        return this;
+    }
+
+
+    /**
+     * 获取类型转换函数
+     * @param type 目标类型
+     * @return 转换函数. 入参不为空
+     */
+    public Function<Object, ?> converter(Class<?> type) {
+        if (type == null) return v -> v;
+        return compiled.computeIfAbsent(type, this::compile);
+    }
+
+
+    /**
+     * 是否有对应的转换器(包含派生类型: 枚举, 数组, {@link FileData})
+     * @param type 目标类型
+     * @return true: 有
+     */
+    public boolean supports(Class<?> type) {
+        return converters.containsKey(type) || type.isArray() || type.isEnum() || type.isPrimitive() || FileData.class.isAssignableFrom(type);
+    }
+
+
+    /**
+     * 类型转换
+     * @param v 值
+     * @param type 转换的类型
+     * @return 转换后的结果
+     */
+    public <T> T to(Object v, Class<T> type) {
+        if (v == null) return null;
+        return (T) converter(type).apply(v);
+    }
+
+
+    /**
+     * 生成类型转换函数
+     * @param type 目标类型
+     * @return 转换函数
+     */
+    protected Function<Object, ?> compile(Class<?> type) {
+        Function<Object, ?> fn = converters.get(type);
+        if (fn != null) return v -> type.isInstance(v) ? v : fn.apply(v);
+        if (FileData.class.isAssignableFrom(type)) return v -> v instanceof List ? ((List) v).get(0) : v;
+        if (FileData[].class.equals(type)) {
+            return v -> v instanceof List ? ((List<FileData>) v).toArray(new FileData[0]) : new FileData[]{(FileData) v};
+        }
+        if (type.isArray()) {
+            Class<?> cType = type.getComponentType();
+            Function<Object, ?> cFn = compile(cType);
+            boolean primitive = cType.isPrimitive();
+            return v -> {
+                if (v instanceof List) {
+                    List ls = (List) v;
+                    Object arr = Array.newInstance(cType, ls.size());
+                    int i = 0;
+                    for (Object o : ls) {
+                        if (o == null || (primitive && o.toString().isEmpty())) i++; // 基本类型元素为空时保留默认值
+                        else Array.set(arr, i++, cFn.apply(o));
+                    }
+                    return arr;
+                }
+                Object arr = Array.newInstance(cType, 1);
+                Array.set(arr, 0, cFn.apply(v));
+                return arr;
+            };
+        }
+        if (type.isEnum()) { // 枚举: name -> 枚举值 映射只创建一次
+            Map<String, Object> constants = new HashMap<>();
+            for (Object o : type.getEnumConstants()) { constants.put(((Enum) o).name(), o); }
+            return v -> type.isInstance(v) ? v : constants.get(v.toString());
+        }
+        return v -> v;
+    }
+}
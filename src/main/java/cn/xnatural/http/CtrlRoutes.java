@@ -0,0 +1,155 @@
+package cn.xnatural.http;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.List;
+
+/**
+ * 控制层路由表
+ * 由 {@link RouteProcessor} 编译时为每个 {@link Ctrl} 类生成: 类名 + $$Routes
+ * 存在时 {@link HttpServer} 不再反射解析 {@link Ctrl} 类, 不存在时反射解析
+ */
+public interface CtrlRoutes {
+
+    /**
+     * 创建控制层对象
+     * @return 控制层对象
+     */
+    Object create();
+
+
+    /**
+     * 控制层类中的所有 {@link Path}, {@link Filter}, {@link WS} 方法
+     * @return {@link Mapping}
+     */
+    List<Mapping> mappings();
+
+
+    /**
+     * 方法调用桩
+     */
+    @FunctionalInterface
+    interface Stub {
+        /**
+         * 调用控制层方法
+         * @param ctrl 控制层对象
+         * @param args 参数
+         * @return 方法返回值. void 方法返回 null
+         */
+        Object invoke(Object ctrl, Object[] args) throws Throwable;
+    }
+
+
+    /**
+     * 一个控制层方法的映射
+     */
+    final class Mapping {
+        /**
+         * {@link Path}, {@link Filter}, {@link WS}
+         */
+        public final Class<? extends Annotation> type;
+        /**
+         * 方法名
+         */
+        public final String                      name;
+        /**
+         * {@link Path#path()}, {@link Filter#path()} 或 {@link WS#path()}
+         */
+        public final String[]                    path;
+        /**
+         * {@link Path#method()}
+         */
+        public final String                      method;
+        /**
+         * {@link Path#consumer()}
+         */
+        public final String[]                    consumer;
+        /**
+         * {@link Path#produce()}
+         */
+        public final String                      produce;
+        /**
+         * {@link Filter#order()}
+         */
+        public final int                         order;
+        /**
+         * {@link Path#concurrency()}
+         */
+        public final int                         concurrency;
+        /**
+         * {@link Path#timeout()}
+         */
+        public final long                        timeout;
+        /**
+         * {@link Path#etag()}
+         */
+        public final boolean                     etag;
+        /**
+         * 方法返回是否为 void
+         */
+        public final boolean                     returnVoid;
+        /**
+         * 参数名
+         */
+        public final String[]                    paramNames;
+        /**
+         * 参数类型
+         */
+        public final Class<?>[]                  paramClasses;
+        /**
+         * 参数类型(包含泛型)
+         */
+        public final Type[]                      paramTypes;
+        /**
+         * 调用桩
+         */
+        public final Stub                        stub;
+
+
+        Mapping(Class<? extends Annotation> type, String name, String[] path, String method, String[] consumer, String produce, int order, int concurrency,
+                long timeout, boolean etag, boolean returnVoid, String[] paramNames, Class<?>[] paramClasses, Type[] paramTypes, Stub stub) {
+            this.type = type;
+            this.name = name;
+            this.path = path;
+            this.method = method;
+            this.consumer = consumer;
+            this.produce = produce;
+            this.order = order;
+            this.concurrency = concurrency;
+            this.timeout = timeout;
+            this.etag = etag;
+            this.returnVoid = returnVoid;
+            this.paramNames = paramNames;
+            this.paramClasses = paramClasses;
+            this.paramTypes = paramTypes;
+            this.stub = stub;
+        }
+
+
+        /**
+         * {@link Path} 方法
+         */
+        public static Mapping path(String name, String[] path, String method, String[] consumer, String produce, int concurrency, long timeout, boolean etag,
+                                   boolean returnVoid, String[] paramNames, Class<?>[] paramClasses, Type[] paramTypes, Stub stub) {
+            return new Mapping(Path.class, name, path, method, consumer, produce, 0, concurrency, timeout, etag, returnVoid, paramNames, paramClasses, paramTypes, stub);
+        }
+
+
+        /**
+         * {@link Filter} 方法
+         */
+        public static Mapping filter(String name, String[] path, int order, boolean returnVoid,
+                                     String[] paramNames, Class<?>[] paramClasses, Type[] paramTypes, Stub stub) {
+            return new Mapping(Filter.class, name, path, null, null, null, order, 0, 0, false, returnVoid, paramNames, paramClasses, paramTypes, stub);
+        }
+
+
+        /**
+         * {@link WS} 方法
+         */
+        public static Mapping ws(String name, String path, boolean returnVoid,
+                                 String[] paramNames, Class<?>[] paramClasses, Type[] paramTypes, Stub stub) {
+            return new Mapping(WS.class, name, new String[]{path}, null, null, null, 0, 0, 0, false, returnVoid, paramNames, paramClasses, paramTypes, stub);
+        }
+    }
+}
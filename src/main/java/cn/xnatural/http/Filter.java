@@ -14,4 +14,11 @@ public @interface Filter {
      * @return
      */
     int order() default 0;
+
+    /**
+     * 限定路径(相对于 {@link Ctrl#prefix()}), 按路径前缀匹配. 例: "admin" 匹配 admin, admin/:id
+     * 空: 前缀下所有请求
+     * @return
+     */
+    String[] path() default {};
 }
@@ -13,4 +13,11 @@ abstract class FilterHandler implements Handler {
 
     @Override
     public boolean match(HttpContext ctx) { return true; }
+
+
+    /**
+     * 限定路径(相对于所在 {@link Chain} 的前缀)
+     * @return null 或 空: 所有路径
+     */
+    String[] paths() { return null; }
 }
\ No newline at end of file
@@ -2,6 +2,8 @@ package cn.xnatural.http;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.ClosedChannelException;
@@ -26,10 +28,18 @@ public class HttpAioSession {
     protected final Lazies<ByteBuffer> _buf        = new Lazies<>(() -> ByteBuffer.allocate(server.getInteger("receiveMsgBufferSize", 1024 * 1024)));
     // 不为空代表是WebSocket
     protected WebSocket                              ws;
+    // 不为空代表是 Server-Sent Events 连接
+    protected volatile SseEmitter                    sse;
     // 当前解析的请求
     protected HttpRequest                            request;
     // 临时文件
     protected final List<File>                       tmpFiles    = new LinkedList<>();
+    // 单次写出字节数, 指数加权平均. 0: 还没有测量
+    protected volatile double                        writeBytes;
+    // 单次写出耗时(毫秒), 指数加权平均
+    protected volatile double                        writeLatency;
+    // 最近一次选择的分块大小
+    protected volatile int                           chunkSize;
 
 
     HttpAioSession(AsynchronousSocketChannel channel, HttpServer server) {
@@ -57,6 +67,8 @@ public class HttpAioSession {
             _buf.clear(); // 释放
             tmpFiles.forEach((f) -> {try { f.delete(); } catch (Exception ex) {}});
             doClose(this);
+            if (sse != null) sse.close();
+            if (ws != null) ws.close();
         }
     }
 
@@ -76,7 +88,10 @@ public class HttpAioSession {
         if (closed.get() || buf == null) return;
         lastUsed = System.currentTimeMillis();
         try {
-            channel.write(buf).get();
+            int n = buf.remaining();
+            long start = System.nanoTime();
+            while (buf.hasRemaining()) channel.write(buf).get(); // 可能只写出一部分
+            if (n >= 1024 * 4) measure(n, System.nanoTime() - start); // 太小的写入直接进入系统缓冲区, 不能反映连接速度
         } catch (Exception ex) {
             if (!(ex instanceof ClosedChannelException)) {
                 try {
@@ -90,6 +105,64 @@ public class HttpAioSession {
     }
 
 
+    /**
+     * 记录一次写出的速度和耗时
+     * @param bytes 字节数
+     * @param nanos 耗时. 单位: 纳秒
+     */
+    protected void measure(int bytes, long nanos) {
+        double ms = Math.max(nanos / 1000000d, 0.001);
+        boolean first = writeBytes == 0;
+        writeBytes = first ? bytes : writeBytes * 0.7 + bytes * 0.3;
+        writeLatency = first ? ms : writeLatency * 0.7 + ms * 0.3;
+    }
+
+
+    /**
+     * 写出速度: 平均字节数 / 平均耗时(不是每次速度的平均, 避免被写入系统缓冲区的瞬间完成主导)
+     * @return 字节/毫秒. 0: 还没有测量
+     */
+    protected double rate() {
+        double bytes = writeBytes, ms = writeLatency;
+        return bytes == 0 || ms <= 0 ? 0 : bytes / ms;
+    }
+
+
+    /**
+     * 按测量的写出速度选择分块大小: 一块约 targetTime 毫秒写完
+     * 快的连接大块写出, 慢的连接小块写出, 不占用大缓冲区
+     * @param min 最小分块
+     * @param max 最大分块
+     * @param targetTime 一块的目标写出时间. 单位: 毫秒
+     * @return 分块大小. 4K 对齐
+     */
+    int chunkSize(int min, int max, long targetTime) {
+        double rate = rate();
+        long size = rate == 0 ? 1024 * 64 : (long) (rate * targetTime);
+        size = Math.max(min, Math.min(max, size));
+        if (size >= 4096) size &= ~4095L;
+        return chunkSize = (int) size;
+    }
+
+
+    /**
+     * @return 写出速度估计. 单位: 字节/秒. 0: 还没有测量
+     */
+    public long getWriteRate() { return (long) (rate() * 1000); }
+
+
+    /**
+     * @return 单次写出耗时估计. 单位: 毫秒
+     */
+    public double getWriteLatency() { return writeLatency; }
+
+
+    /**
+     * @return 最近一次选择的分块大小. 0: 还没有分块发送
+     */
+    public int getChunkSize() { return chunkSize; }
+
+
     /**
      * 继续处理接收数据
      */
@@ -99,6 +172,25 @@ public class HttpAioSession {
     }
 
 
+    /**
+     * WebSocket 握手: 收到升级请求后暂停读取, 握手响应后再开始接收帧
+     * 避免帧在设置监听前到达, 及 pong 与握手响应同时写出
+     * 读回调暂停 和 握手处理完成 都调用, 后到的一方先解码握手时已收到的数据, 再继续读
+     * @return true: 可以继续读
+     */
+    boolean resume() {
+        if (ws.handshake.incrementAndGet() != 2 || closed.get()) return false;
+        ws.opened = true;
+        ByteBuffer buf = _buf.get();
+        if (buf.position() > 0) {
+            buf.flip();
+            doRead(buf);
+            buf.compact();
+        }
+        return !ws.parkRead();
+    }
+
+
     /**
      * 读数据, 解析数据
      * @param buf 请求字节流
@@ -146,6 +238,20 @@ public class HttpAioSession {
     }
 
 
+    /**
+     * 远程IP
+     * @return null: 已断开
+     */
+    public String getRemoteIp() {
+        try {
+            SocketAddress addr = channel.getRemoteAddress();
+            return addr instanceof InetSocketAddress ? ((InetSocketAddress) addr).getAddress().getHostAddress() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+
     /**
      * 本地连接地址
      * @return
@@ -178,6 +284,7 @@ public class HttpAioSession {
                 buf.flip();
                 doRead(buf);
                 buf.compact();
+                if (ws != null && (ws.opened ? ws.parkRead() : !resume())) return; // WebSocket 握手完成后再接收; 待处理消息过多时暂停
                 // 避免 ReadPendingException
                 read();
             } else {
@@ -185,7 +292,7 @@ public class HttpAioSession {
                 //2. 浏览器老发送空的字节
                 // TODO 待研究
                 // log.warn("接收字节为空. 关闭 " + session.sc.toString())
-                if (!channel.isOpen()) close();
+                if (!channel.isOpen() || (count < 0 && (sse != null || ws != null))) close(); // 客户端断开 Server-Sent Events, WebSocket
             }
         }
 
@@ -6,18 +6,20 @@ import com.alibaba.fastjson.serializer.SerializerFeature;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Array;
-import java.math.BigDecimal;
-import java.math.BigInteger;
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URL;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
+import java.util.stream.BaseStream;
 
 import static cn.xnatural.http.HttpServer.log;
 
@@ -33,10 +35,6 @@ public class HttpContext {
      * 路径变量值映射
      */
     protected final           Map<String, Object> pathToken = new LinkedHashMap<>(7);
-    /**
-     * 路径块, 用于路径匹配 /test/p1/p2 -> test,p1,p2
-     */
-    protected final LinkedList<String>            pieces        = new LinkedList<>();
     /**
      * 是否已关闭
      */
@@ -50,9 +48,41 @@ public class HttpContext {
      */
     protected final Lazies<Map<String, Object>> sessionSupplier;
     /**
-     * 执行的 {@link Handler}
+     * 匹配的路由. 未匹配为 null
+     */
+    protected Router.Route                        route;
+    /**
+     * 异步响应: 等待完成的 {@link CompletionStage}
+     */
+    protected volatile CompletionStage<?>         pending;
+    /**
+     * 是否占用了路由的 {@link Bulkhead}
      */
-    protected final List<Handler>                 passedHandler = new LinkedList<>();
+    protected final AtomicBoolean                 acquired      = new AtomicBoolean(false);
+    /**
+     * 路由执行截止时间的定时任务 {@link #deadline(long)}
+     */
+    protected volatile ScheduledFuture<?>         deadline;
+    /**
+     * 正在执行路由的线程. 超时时中断
+     */
+    protected Thread                              worker;
+    /**
+     * 是否已超时. 超时后的响应丢弃
+     */
+    protected volatile boolean                    timedOut;
+    /**
+     * Server-Sent Events 响应 {@link #sse()}
+     */
+    protected volatile SseEmitter                 sse;
+    /**
+     * 正在限速发送响应体 {@link ThrottledSender}. 发送完后再判断是否关闭连接
+     */
+    protected volatile boolean                    sending;
+    /**
+     * 已由 json body 反序列化的对象参数: 类型 -> 对象 {@link ParamBinder#body(Type)}
+     */
+    protected Map<Type, Object>                   bodies;
 
 
     /**
@@ -67,14 +97,6 @@ public class HttpContext {
         this.aioStream = request.session;
         this.server = server;
         this.sessionSupplier = new Lazies<>(() -> sessionDelegate.apply(this));
-
-        if ("/".equals(request.getPath())) this.pieces.add("/");
-        else {
-            for (String piece : Handler.extract(request.getPath()).split("/")) {
-                pieces.add(piece);
-            }
-            if (request.getPath().endsWith("/")) this.pieces.add("/");
-        }
     }
 
 
@@ -88,6 +110,83 @@ public class HttpContext {
     }
 
 
+    /**
+     * 进入匹配路由的所有 {@link Bulkhead}
+     * @return false: 超过并发限制
+     */
+    protected boolean acquire() {
+        Bulkhead[] bs = route.bulkheads;
+        if (bs.length == 0) return true;
+        for (int i = 0; i < bs.length; i++) {
+            if (!bs[i].tryAcquire()) {
+                for (int j = 0; j < i; j++) bs[j].release();
+                return false;
+            }
+        }
+        acquired.set(true);
+        return true;
+    }
+
+
+    /**
+     * 路由执行结束: 取消截止时间, 退出 {@link Bulkhead}. 只执行一次
+     */
+    protected void release() {
+        ScheduledFuture<?> d = deadline;
+        if (d != null) {
+            deadline = null;
+            d.cancel(false);
+        }
+        if (!acquired.compareAndSet(true, false)) return;
+        for (Bulkhead b : route.bulkheads) b.release();
+    }
+
+
+    /**
+     * 设置路由执行截止时间: 从现在开始 timeout 毫秒后 {@link #timeout(long)}
+     * @param timeout 超时时间. 单位: 毫秒
+     */
+    protected void deadline(long timeout) {
+        deadline = server._timer.get().schedule(() -> timeout(timeout), timeout, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * 设置正在执行路由的线程. 结束时(null) 清除可能残留的中断标记
+     * @param thread 当前线程 或 null
+     */
+    protected synchronized void running(Thread thread) {
+        worker = thread;
+        if (thread == null) Thread.interrupted();
+    }
+
+
+    /**
+     * 超时: 响应 504, 取消异步响应, 中断执行线程. 之后的响应丢弃
+     * 先占用响应(commit), 已响应时什么都不做
+     * 不退出 {@link Bulkhead}: 执行线程可能不响应中断, 等它离开 {@link Chain#handle(HttpContext)} 或异步响应完成时再 {@link #release()}
+     * @param timeout 超时时间. 单位: 毫秒
+     */
+    protected void timeout(long timeout) {
+        synchronized (this) { // 与 render 判断 timedOut 互斥
+            if (!response.commit.compareAndSet(false, true)) return;
+            timedOut = true;
+        }
+        log.warn("Request timeout '" + request.getId() + "', path: " + request.getPath() + ", timeout: " + timeout + "ms");
+        response.status(504);
+        doRender(ApiResp.fail("Request timeout"));
+        CompletionStage<?> stage = pending;
+        if (stage != null) {
+            try {
+                stage.toCompletableFuture().cancel(true);
+            } catch (UnsupportedOperationException ex) {/** ignore **/}
+        }
+        synchronized (this) {
+            if (worker != null) worker.interrupt();
+        }
+    }
+
+
     /**
      * 从cookie中取session 标识
      * @return session id(会话id)
@@ -178,14 +277,55 @@ public class HttpContext {
     public void render() { render(null); }
 
 
+    /**
+     * 异步响应: 不占用线程等待, 完成时响应结果
+     * 异常时交给 {@link HttpServer#errHandle(Throwable, HttpContext)}
+     * 超时(asyncTimeout, 单位: 毫秒)时响应 504 并取消
+     * 超时和完成 谁先占用响应(commit)谁响应, 另一方丢弃
+     * @param stage {@link CompletionStage}
+     */
+    protected void renderAsync(CompletionStage<?> stage) {
+        pending = stage;
+        long timeout = server.getLong("asyncTimeout", 60000L);
+        ScheduledFuture<?> timer = timeout > 0 ? server._timer.get().schedule(() -> timeout(timeout), timeout, TimeUnit.MILLISECONDS) : null;
+        stage.whenComplete((v, ex) -> {
+            if (timer != null) timer.cancel(false);
+            release();
+            if (timedOut) return; // 已超时: 取消引起的异常不再处理
+            try {
+                if (ex == null) render(v); // 与超时竞争时 render 中 commit 失败则丢弃
+                else server.errHandle(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex, this);
+            } catch (Throwable t) {
+                log.error("Request async render error '" + request.getId() + "', url: " + request.getRowUrl(), t);
+            }
+        });
+    }
+
+
     /**
      * 响应请求
      * @param body 响应内容
      */
     public void render(Object body) {
+        if (body instanceof CompletionStage) { renderAsync((CompletionStage<?>) body); return; }
         if (!response.commit.compareAndSet(false, true)) {
+            synchronized (this) {
+                if (timedOut) { // 超时后的响应丢弃
+                    log.debug("Discard timeout response '{}', path: {}", request.getId(), request.getPath());
+                    return;
+                }
+            }
             throw new RuntimeException("Already submit response");
         }
+        doRender(body);
+    }
+
+
+    /**
+     * 写出响应. 调用前已占用响应(commit)
+     * @param body 响应内容
+     */
+    protected void doRender(Object body) {
         long spend = System.currentTimeMillis() - request.createTime.getTime();
         if (spend > server.getInteger("logWarnTimeout", 5000)) { // 请求超时警告单位ms
             log.warn("Request timeout '" + request.getId() + "', path: " + request.getPath() + " , spend: " + spend + "ms");
@@ -195,7 +335,7 @@ public class HttpContext {
             if (body == null) { //无内容返回
                 response.statusIfNotSet(204);
                 response.contentLengthIfNotSet(0);
-                aioStream.write(ByteBuffer.wrap(preRespBytes()));
+                aioStream.write(preResp());
                 return;
             } else {
                 response.statusIfNotSet(200);
@@ -206,16 +346,19 @@ public class HttpContext {
                 } else if (body instanceof ApiResp) {
                     response.contentTypeIfNotSet("application/json;charset=" + server.getCharset());
                     ((ApiResp) body).setMark((String) param("mark"));
-                    ((ApiResp) body).setTraceNo(request.getId());
-                    renderBytes(JSON.toJSONString(body, SerializerFeature.WriteMapNullValue).getBytes(server.getCharset()));
+                    if (route == null || !route.etag) ((ApiResp) body).setTraceNo(request.getId()); // traceNo 每次不同, 自动 ETag 时不设置
+                    renderJson(body);
                 } else if (body instanceof byte[]) {
                     renderBytes((byte[]) body);
                 } else if (body instanceof File) {
                     renderFile((File) body);
+                } else if (elements(body) && (response.getContentType() == null || response.getContentType().contains("json"))) {
+                    response.contentTypeIfNotSet("application/json;charset=" + server.getCharset());
+                    renderJson(body);
                 } else if (response.getContentType() != null) {
                     String ct = response.getContentType();
                     if (ct.contains("application/json")) {
-                        renderBytes(JSON.toJSONString(body, SerializerFeature.WriteMapNullValue).getBytes(server.getCharset()));
+                        renderJson(body);
                     } else if (ct.contains("text/plain")) {
                         renderBytes(body.toString().getBytes(server.getCharset()));
                     } else throw new Exception("Not support response Content-Type: " + ct);
@@ -229,20 +372,124 @@ public class HttpContext {
     }
 
 
+    /**
+     * Server-Sent Events 响应: text/event-stream, 保持连接, 之后用 {@link SseEmitter} 发送事件
+     * 多次调用返回同一个
+     * @return {@link SseEmitter}
+     */
+    public SseEmitter sse() {
+        if (sse != null) return sse;
+        synchronized (this) {
+            if (sse != null) return sse;
+            if (!response.commit.compareAndSet(false, true)) throw new RuntimeException("Already submit response");
+            response.status(200);
+            response.contentType("text/event-stream;charset=utf-8");
+            response.header("cache-control", "no-cache");
+            response.header("x-accel-buffering", "no"); // nginx 不缓冲
+            response.transferEncoding("chunked");
+            aioStream.write(preResp());
+            SseEmitter emitter = new SseEmitter(this);
+            long retry = server.getLong("sse.retry", 0L);
+            if (retry > 0) emitter.write(SseEmitter.chunk(("retry: " + retry + "\n\n").getBytes(StandardCharsets.UTF_8)));
+            aioStream.sse = emitter;
+            server.sse(emitter);
+            return sse = emitter;
+        }
+    }
+
+
+    /**
+     * 流式响应: 边生成边写入, 自动 chunked 分块. 例: 导出 csv
+     * <pre>
+     *     try (ResponseStream os = ctx.stream("text/csv")) {
+     *         Writer w = os.writer();
+     *         for (...) w.write(line);
+     *     }
+     * </pre>
+     * @param contentType 响应类型
+     * @return {@link ResponseStream} 必须关闭
+     */
+    public ResponseStream stream(String contentType) {
+        if (!response.commit.compareAndSet(false, true)) throw new RuntimeException("Already submit response");
+        response.statusIfNotSet(200);
+        response.contentTypeIfNotSet(contentType == null ? "application/octet-stream" : contentType);
+        return new ResponseStream(this);
+    }
+
+
+    /**
+     * {@link #stream(String)}
+     */
+    public ResponseStream stream() { return stream(null); }
+
+
+    /**
+     * 发送 json: 直接序列化到 {@link BodyOutputStream}, 不生成完整的 String 和 byte[]
+     * 小于缓冲区用 Content-Length, 超过则 chunked 分块发送
+     * {@link Iterator}, {@link Iterable}, {@link BaseStream} 逐个元素序列化: json 数组, 或 Content-Type 为 ndjson 时每行一个
+     * @param body 响应对象
+     * @throws Exception
+     */
+    protected void renderJson(Object body) throws Exception {
+        String encoding = CompressOutputStream.negotiate(this);
+        BodyOutputStream os = new BodyOutputStream(this);
+        try {
+            Writer writer = encoding == null ? os.writer(server.getCharset()) :
+                    new OutputStreamWriter(new CompressOutputStream(os, encoding, server.getInteger("compress.minSize", 1024)), server.getCharset());
+            if (elements(body)) {
+                boolean ndjson = response.getContentType().contains("ndjson");
+                Iterator<?> it = body instanceof Iterator ? (Iterator<?>) body : body instanceof Iterable ? ((Iterable<?>) body).iterator() : ((BaseStream<?, ?>) body).iterator();
+                if (!ndjson) writer.write('[');
+                for (boolean first = true; it.hasNext(); first = false) {
+                    if (!first && !ndjson) writer.write(',');
+                    JSON.writeJSONString(writer, it.next(), SerializerFeature.WriteMapNullValue);
+                    if (ndjson) writer.write('\n');
+                }
+                if (!ndjson) writer.write(']');
+            } else JSON.writeJSONString(writer, body, SerializerFeature.WriteMapNullValue);
+            writer.close();
+        } finally {
+            os.release();
+            if (body instanceof BaseStream) ((BaseStream<?, ?>) body).close(); // 例: 数据库游标
+        }
+    }
+
+
+    /**
+     * 是否按元素逐个发送: {@link Iterator}, {@link Iterable}, {@link BaseStream}
+     */
+    protected static boolean elements(Object body) {
+        return body instanceof Iterator || body instanceof Iterable || body instanceof BaseStream;
+    }
+
+
     /**
      * 发送字节
      * @param bodyBs body
      * @throws Exception
      */
     protected void renderBytes(byte[] bodyBs) throws Exception {
+        if (etag(bodyBs, 0, bodyBs.length)) return;
+        String encoding = bodyBs.length >= server.getInteger("compress.minSize", 1024) ? CompressOutputStream.negotiate(this) : null;
+        if (encoding != null) { // 压缩发送
+            BodyOutputStream os = new BodyOutputStream(this);
+            try {
+                CompressOutputStream cos = new CompressOutputStream(os, encoding, 0);
+                cos.write(bodyBs);
+                cos.close();
+            } finally {
+                os.release();
+            }
+            return;
+        }
         int chunkedSize = server.chunkedSize(this, bodyBs.length, byte[].class);
         if (chunkedSize < 0) { // 不分块, 文件整块传送
             response.contentLengthIfNotSet(bodyBs.length);
-            aioStream.write(ByteBuffer.wrap(preRespBytes())); //1. 先写header
+            aioStream.write(preResp()); //1. 先写header
             aioStream.write(ByteBuffer.wrap(bodyBs)); //2. 再写body
         } else {
             response.transferEncoding("chunked");
-            aioStream.write(ByteBuffer.wrap(preRespBytes())); // 1. 先写公共header
+            aioStream.write(preResp()); // 1. 先写公共header
             try (InputStream is = new ByteArrayInputStream(bodyBs)) { // 2. 再写body内容
                 chunked(chunkedSize, is);
             }
@@ -261,15 +508,82 @@ public class HttpContext {
             response.status(404);
             log.warn("Request {}({}). id: {}, url: {}", HttpResponse.statusMsg.get(response.status), response.status, request.getId(), request.getRowUrl());
             response.contentLengthIfNotSet(0);
-            aioStream.write(ByteBuffer.wrap(preRespBytes()));
+            aioStream.write(preResp());
             close(); return;
         }
-        if (file.getName().endsWith(".html")) {
-            response.contentTypeIfNotSet("text/html");
-        } else if (file.getName().endsWith(".css")) {
-            response.contentTypeIfNotSet("text/css");
-        } else if (file.getName().endsWith(".js")) {
-            response.contentTypeIfNotSet("application/javascript");
+        String ct = MimeTypes.of(file.getName());
+        if (ct != null) response.contentTypeIfNotSet(ct);
+        StaticCache.Entry entry = server._staticCache.get().get(file);
+        long length = entry == null ? file.length() : entry.length, lastModified = entry == null ? file.lastModified() : entry.lastModified;
+        String range = "GET".equals(request.getMethod()) && response.status == 200 ? request.getHeader("Range") : null;
+        if (range != null && !ifRange(StaticCache.etag(length, lastModified, null), lastModified)) range = null;
+        if (response.status == 200) response.header("accept-ranges", "bytes");
+        TokenBucket[] throttle = server.throttle(this);
+        String encoding = range == null && throttle.length == 0 ? CompressOutputStream.negotiate(this) : null; // 分段响应, 限速发送不压缩
+        if (encoding != null) response.header("vary", "Accept-Encoding");
+        File gz = "gzip".equals(encoding) ? new File(file.getPath() + ".gz") : null;
+        if (gz != null && !(gz.isFile() && gz.lastModified() >= lastModified)) gz = null; // 预压缩的 .gz 文件
+        if (entry != null && "deflate".equals(encoding)) encoding = null; // 缓存只保存 gzip 压缩内容
+        else if (encoding != null && gz == null && length < server.getInteger("compress.minSize", 1024)) encoding = null;
+
+        // 缓存验证: ETag, Last-Modified
+        if (response.status == 200) {
+            String etag = StaticCache.etag(length, lastModified, encoding);
+            response.header("etag", etag);
+            response.header("last-modified", ResponseHead.httpDate(lastModified));
+            if (notModified(etag, lastModified)) {
+                response.status(304);
+                response.headers.remove("content-length");
+                aioStream.write(preResp());
+                return;
+            }
+        }
+        if (range != null) {
+            List<ByteRange> ranges = ByteRange.parse(range, length);
+            if (ranges != null) {
+                renderRanges(file, entry, length, ranges, throttle);
+                return;
+            }
+        }
+        if (entry != null) { // 从缓存发送
+            ByteBuffer data = entry.data;
+            if (encoding != null) {
+                data = server._staticCache.get().gzip(file, entry);
+                response.header("content-encoding", encoding);
+            }
+            response.contentLengthIfNotSet(data.remaining());
+            aioStream.write(preResp());
+            if (throttle.length > 0) new ThrottledSender(this, throttle, null).add(data.duplicate()).start();
+            else aioStream.write(data.duplicate());
+            return;
+        }
+        if (throttle.length > 0) { // 限速发送
+            FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            response.contentLengthIfNotSet(length);
+            try {
+                aioStream.write(preResp());
+            } catch (Exception ex) {
+                fc.close(); throw ex;
+            }
+            new ThrottledSender(this, throttle, fc).add(0, length).start();
+            return;
+        }
+        if (encoding != null) {
+            if (gz != null) {
+                response.header("content-encoding", "gzip");
+                file = gz;
+            } else { // 压缩发送
+                BodyOutputStream os = new BodyOutputStream(this);
+                try (InputStream fis = new FileInputStream(file)) {
+                    CompressOutputStream cos = new CompressOutputStream(os, encoding, 0);
+                    byte[] buf = new byte[1024 * 8];
+                    for (int n; (n = fis.read(buf)) != -1; ) cos.write(buf, 0, n);
+                    cos.close();
+                } finally {
+                    os.release();
+                }
+                return;
+            }
         }
 
         int chunkedSize = server.chunkedSize(this, (int) file.length(), File.class);
@@ -277,13 +591,13 @@ public class HttpContext {
             byte[] content = new byte[(int) file.length()]; // 一次性读出来, 减少IO
             try (InputStream fis = new FileInputStream(file)) { fis.read(content); }
             response.contentLengthIfNotSet(content.length);
-            aioStream.write(ByteBuffer.wrap(preRespBytes())); //1. 先写header
+            aioStream.write(preResp()); //1. 先写header
             aioStream.write(ByteBuffer.wrap(content)); //2. 再写body
         } else { // 文件分块传送
             // response.contentLengthIfNotSet((int) file.length());
             response.transferEncoding("chunked");
             response.contentTypeIfNotSet("application/octet-stream");
-            aioStream.write(ByteBuffer.wrap(preRespBytes())); // 1. 先写公共header
+            aioStream.write(preResp()); // 1. 先写公共header
             try (InputStream fis = new FileInputStream(file)) { // 2. 再写文件内容
                 chunked(chunkedSize, fis);
             }
@@ -291,41 +605,200 @@ public class HttpContext {
     }
 
 
+    /**
+     * 发送分段内容(206)
+     * 单个区间: 直接发送缓存的区间或文件映射; 多个区间: multipart/byteranges
+     * @param file 文件
+     * @param entry 文件缓存. 可为 null
+     * @param length 文件长度
+     * @param ranges 请求的区间
+     * @param throttle 限速. 空: 不限速
+     */
+    protected void renderRanges(File file, StaticCache.Entry entry, long length, List<ByteRange> ranges, TokenBucket[] throttle) throws Exception {
+        if (ranges.isEmpty()) { // 没有可满足的区间
+            response.status(416);
+            response.header("content-range", "bytes */" + length);
+            response.contentLengthIfNotSet(0);
+            aioStream.write(preResp());
+            return;
+        }
+        response.status(206);
+        FileChannel fc = entry == null ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null;
+        ThrottledSender sender = throttle.length > 0 ? new ThrottledSender(this, throttle, fc) : null;
+        try {
+            if (ranges.size() == 1) {
+                ByteRange r = ranges.get(0);
+                response.header("content-range", "bytes " + r + "/" + length);
+                response.header("content-length", r.length());
+                aioStream.write(preResp());
+                writeRange(entry, fc, r, sender);
+            } else {
+                String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(Double.doubleToLongBits(Math.random()));
+                String ct = response.getContentType() == null ? "application/octet-stream" : response.getContentType();
+                byte[][] heads = new byte[ranges.size()][];
+                long total = 0;
+                for (int i = 0; i < heads.length; i++) {
+                    ByteRange r = ranges.get(i);
+                    heads[i] = ("\r\n--" + boundary + "\r\ncontent-type: " + ct + "\r\ncontent-range: bytes " + r + "/" + length + "\r\n\r\n").getBytes(server.getCharset());
+                    total += heads[i].length + r.length();
+                }
+                byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(server.getCharset());
+                response.contentType("multipart/byteranges; boundary=" + boundary);
+                response.header("content-length", total + end.length);
+                aioStream.write(preResp());
+                for (int i = 0; i < heads.length; i++) {
+                    if (sender == null) aioStream.write(ByteBuffer.wrap(heads[i]));
+                    else sender.add(ByteBuffer.wrap(heads[i]));
+                    writeRange(entry, fc, ranges.get(i), sender);
+                }
+                if (sender == null) aioStream.write(ByteBuffer.wrap(end));
+                else sender.add(ByteBuffer.wrap(end));
+            }
+        } catch (Exception ex) {
+            if (fc != null) fc.close();
+            throw ex;
+        }
+        if (sender != null) sender.start(); // 发送完后关闭文件
+        else if (fc != null) fc.close();
+    }
+
+
+    /**
+     * 发送一个区间: 缓存时直接切片, 否则按窗口映射文件, 不经过堆内存复制
+     * @param sender 限速发送时只添加到 {@link ThrottledSender}. 可为 null
+     */
+    protected void writeRange(StaticCache.Entry entry, FileChannel fc, ByteRange r, ThrottledSender sender) throws Exception {
+        if (entry != null) {
+            ByteBuffer data = entry.data.duplicate();
+            data.limit((int) r.end + 1).position((int) r.start);
+            if (sender == null) aioStream.write(data);
+            else sender.add(data);
+            return;
+        }
+        if (sender != null) {
+            sender.add(r.start, r.length());
+            return;
+        }
+        for (long pos = r.start, remain = r.length(); remain > 0; ) {
+            long n = Math.min(remain, 1024 * 1024 * 8);
+            aioStream.write(fc.map(FileChannel.MapMode.READ_ONLY, pos, n));
+            pos += n; remain -= n;
+        }
+    }
+
+
+    /**
+     * If-Range 验证: 不存在或与当前 ETag(强比较)/修改时间一致时, Range 才有效
+     * @param etag 当前 ETag
+     * @param lastModified 当前修改时间
+     */
+    protected boolean ifRange(String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) return true;
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) return etag.equals(ifRange);
+        long date = ResponseHead.parseHttpDate(ifRange);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+
+    /**
+     * 请求的缓存验证是否通过(响应 304): If-None-Match 优先, 其次 If-Modified-Since
+     * @param etag 当前 ETag
+     * @param lastModified 当前修改时间. <0: 没有
+     */
+    protected boolean notModified(String etag, long lastModified) {
+        if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) return false;
+        String inm = request.getHeader("If-None-Match");
+        if (inm != null) { // 弱比较
+            if (etag.startsWith("W/")) etag = etag.substring(2);
+            for (String tag : inm.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if ("*".equals(tag) || etag.equals(tag)) return true;
+            }
+            return false;
+        }
+        String ims = request.getHeader("If-Modified-Since");
+        if (ims == null || lastModified < 0) return false;
+        long since = ResponseHead.parseHttpDate(ims);
+        return since >= 0 && lastModified / 1000 <= since / 1000;
+    }
+
+
+    /**
+     * 路由开启了自动 ETag({@link Path#etag()}) 时, 按响应内容生成弱 ETag, 请求 If-None-Match 一致则响应 304
+     * @param bs 响应内容
+     * @param off 开始位置
+     * @param len 长度
+     * @return true: 已响应 304, 不需要再发送内容
+     */
+    protected boolean etag(byte[] bs, int off, int len) throws IOException {
+        if (route == null || !route.etag || response.status != 200 || response.header("etag") != null) return false;
+        if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) return false;
+        String etag = weakEtag(bs, off, len);
+        response.header("etag", etag);
+        if (!notModified(etag, -1)) return false;
+        response.status(304);
+        response.headers.remove("content-length");
+        response.headers.remove("transfer-encoding");
+        aioStream.write(preResp());
+        return true;
+    }
+
+
+    /**
+     * 弱 ETag: 内容的 64 位 FNV-1a 哈希
+     */
+    static String weakEtag(byte[] bs, int off, int len) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = off, end = off + len; i < end; i++) {
+            h ^= bs[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return "W/\"" + Long.toHexString(h) + "-" + Integer.toHexString(len) + "\"";
+    }
+
+
     /**
      * 分批发送数据 chunked
+     * chunk.adaptive(默认 true): 每块发送后按连接写出速度调整下一块大小 {@link HttpServer#adaptiveChunkSize(HttpContext)}
      * @param chunkedSize 分批大小
      * @param is 输入数据流
      * @throws Exception
      */
     protected void chunked(int chunkedSize, InputStream is) throws Exception {
-        byte[] buf = new byte[chunkedSize]; // 数据缓存buf
-        boolean end;
-        do {
-            int length = is.read(buf); // 一批一批的读, 减少IO
-            end = length < chunkedSize; // 是否已结束(当读出来的数据少于chunkedSize)
-            if (length > 0) {
-                aioStream.write(ByteBuffer.wrap((Integer.toHexString(length) + "\r\n").getBytes(server.getCharset()))); //1. 写chunked: header
-                aioStream.write(ByteBuffer.wrap(buf, 0, length)); //2. 写chunked: body
-                aioStream.write(ByteBuffer.wrap("\r\n".getBytes(server.getCharset()))); //2. 写chunked: end
+        boolean adaptive = server.getBoolean("chunk.adaptive", true);
+        byte[] buf = new byte[BodyOutputStream.HEAD + chunkedSize + 2]; // [chunk头预留 | 数据 | \r\n]
+        for (int size = chunkedSize; ; ) {
+            int length = 0;
+            for (int n; length < size && (n = is.read(buf, BodyOutputStream.HEAD + length, size - length)) != -1; ) length += n; // 一批一批的读, 减少IO
+            if (length > 0) { // chunk 头, 数据, 尾一次写出
+                String hex = Integer.toHexString(length);
+                int start = BodyOutputStream.HEAD - hex.length() - 2;
+                for (int i = 0; i < hex.length(); i++) buf[start + i] = (byte) hex.charAt(i);
+                buf[BodyOutputStream.HEAD - 2] = '\r'; buf[BodyOutputStream.HEAD - 1] = '\n';
+                buf[BodyOutputStream.HEAD + length] = '\r'; buf[BodyOutputStream.HEAD + length + 1] = '\n';
+                aioStream.write(ByteBuffer.wrap(buf, start, BodyOutputStream.HEAD + length + 2 - start));
             }
-            // Thread.sleep(450L); // 阿里云网速限制, chunkedSize = 1024 * 20
-        } while (!end);
+            if (length < size || aioStream.closed.get()) break; // 已结束
+            if (adaptive) {
+                size = server.adaptiveChunkSize(this);
+                if (BodyOutputStream.HEAD + size + 2 > buf.length) buf = new byte[BodyOutputStream.HEAD + size + 2];
+            }
+        }
         //3. 结束chunk
-        aioStream.write(ByteBuffer.wrap("0\r\n\r\n".getBytes(server.getCharset())));
+        aioStream.write(ByteBuffer.wrap(BodyOutputStream.END));
     }
 
 
     /**
      * http 响应的前半部分
-     * 包含: 起始行, 公共 header
-     * @return byte[]
+     * 包含: 起始行, 公共 header {@link ResponseHead}
+     * @return {@link ByteBuffer} 当前线程下次编码前有效, 需立即写出
      */
-    protected byte[] preRespBytes() throws Exception {
-        StringBuilder sb = new StringBuilder();
-        sb.append("HTTP/").append(request.getVersion()).append(" ").append(response.status).append(" ").append(HttpResponse.statusMsg.get(response.status)).append("\r\n"); // 起始行
-        response.headers.forEach((key, value) -> sb.append(key).append(": ").append(value).append("\r\n"));
-        response.cookies.forEach((key, value) -> sb.append("Set-Cookie: ").append(key).append("=").append(value).append("\r\n"));
-        return sb.append("\r\n").toString().getBytes(server.getCharset());
+    protected ByteBuffer preResp() {
+        return ResponseHead.encode(request.getVersion(), response, server.getCharset());
     }
 
 
@@ -333,6 +806,7 @@ public class HttpContext {
      * 判断是否应该关闭此次Http连接会话
      */
     protected void determineClose() {
+        if (sending) return;
         String connection = request.getConnection();
         if (connection != null && connection.toLowerCase().contains("close")) {
             // http/1.1 规定 只有显示 connection:close 才关闭连接
@@ -384,49 +858,15 @@ public class HttpContext {
             if (v == null) v = request.getJsonParams().get(pName);
         }
         if (type == null) return (T) v;
-        else if (v == null) return null;
-        else if (FileData.class.isAssignableFrom(type)) return (T) (v instanceof List ? (((List) v).get(0)) : v);
-        else if (FileData[].class.equals(type)) return v instanceof List ? (T) ((List) v).toArray() : (T) new FileData[]{(FileData) v};
-        else if (type.isArray()) {
-            List ls = new LinkedList();
-            if (v instanceof List) {
-                for (Object o : ((List) v)) { ls.add(to(o, type.getComponentType())); }
-                return (T) ls.toArray((T[]) Array.newInstance(type.getComponentType(), ((List) v).size()));
-            } else {
-                ls.add(to(v, type.getComponentType()));
-                return (T) ls.toArray((T[]) Array.newInstance(type.getComponentType(), 1));
-            }
-        } else return to(v, type);
+        return server.converters.to(v, type);
     }
 
 
     /**
-     * 类型转换
+     * 类型转换(只包含内置转换器) {@link Converters}
      * @param v 值
      * @param type 转换的类型
      * @return 转换后的结果
      */
-    public static <T> T to(Object v, Class<T> type) {
-        if (type == null) return (T) v;
-        if (v == null) return null;
-        else if (String.class.equals(type)) return (T) v.toString();
-        else if (Boolean.class.equals(type) || boolean.class.equals(type)) return (T) Boolean.valueOf(v.toString());
-        else if (Short.class.equals(type) || short.class.equals(type)) return (T) Short.valueOf(v.toString());
-        else if (Integer.class.equals(type) || int.class.equals(type)) return (T) Integer.valueOf(v.toString());
-        else if (BigInteger.class.equals(type)) return (T) new BigInteger(v.toString());
-        else if (Long.class.equals(type) || long.class.equals(type)) return (T) Long.valueOf(v.toString());
-        else if (Double.class.equals(type) || double.class.equals(type)) return (T) Double.valueOf(v.toString());
-        else if (Float.class.equals(type) || float.class.equals(type)) return (T) Float.valueOf(v.toString());
-        else if (BigDecimal.class.equals(type)) return (T) new BigDecimal(v.toString());
-        else if (URI.class.equals(type)) return (T) URI.create(v.toString());
-        else if (URL.class.equals(type)) {
-            try {
-                return (T) URI.create(v.toString()).toURL();
-            } catch (MalformedURLException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        else if (type.isEnum()) return Arrays.stream(type.getEnumConstants()).filter((o) -> v.equals(((Enum) o).name())).findFirst().orElse(null);
-        return (T) v;
-    }
+    public static <T> T to(Object v, Class<T> type) { return Converters.DEFAULT.to(v, type); }
 }
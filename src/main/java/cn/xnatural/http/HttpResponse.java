@@ -137,7 +137,10 @@ public class HttpResponse {
     public HttpResponse transferEncoding(CharSequence transferEncoding) { return header("Transfer-Encoding", transferEncoding); }
 
 
-    public HttpResponse contentLengthIfNotSet(int length) {
+    public HttpResponse contentLengthIfNotSet(int length) { return contentLengthIfNotSet((long) length); }
+
+
+    public HttpResponse contentLengthIfNotSet(long length) {
         if (!headers.containsKey("content-length")) {
             header("content-length", length);
         }
@@ -5,9 +5,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
+import java.lang.reflect.Type;
 import java.net.*;
 import java.nio.channels.*;
 import java.nio.charset.Charset;
@@ -21,6 +21,7 @@ import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -84,6 +85,22 @@ public class HttpServer {
         }
         return set;
     });
+    /**
+     * 可压缩的响应 Content-Type(前缀匹配)
+     */
+    protected final Lazies<List<String>> _compressTypes = new Lazies<>(() -> {
+        List<String> ls = new ArrayList<>();
+        for (String type : getStr("compress.types", "text/,application/json,application/x-ndjson,application/javascript,application/xml,image/svg+xml").split(",")) {
+            if (type != null && !type.trim().isEmpty()) ls.add(type.trim().toLowerCase());
+        }
+        return ls;
+    });
+    /**
+     * 静态文件缓存. staticCache.maxSize 为 0 时不缓存
+     */
+    protected final Lazies<StaticCache> _staticCache = new Lazies<>(() -> new StaticCache(
+            getLong("staticCache.maxSize", 1024 * 1024 * 64L), getLong("staticCache.maxFileSize", 1024 * 1024L)
+    ));
     /**
      * 配置属性
      */
@@ -96,6 +113,48 @@ public class HttpServer {
      * 分片上传映射
      */
     protected final Map<String, FileData> pieceUploadMap = new ConcurrentHashMap<>();
+    /**
+     * 参数类型转换器
+     */
+    protected final Converters converters = new Converters();
+    /**
+     * 编译时生成的路由表: 控制层类 -> {@link CtrlRoutes}
+     */
+    protected final Map<Class, CtrlRoutes> ctrlRoutes = new ConcurrentHashMap<>();
+    /**
+     * 隔离舱: 名称 -> {@link Bulkhead}
+     */
+    protected final Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+    /**
+     * 全局下载限速: 属性 throttle (字节/秒). 所有连接共享. 空: 不限速
+     */
+    protected final Lazies<TokenBucket[]> _throttle = new Lazies<>(() -> {
+        long rate = getLong("throttle", 0L);
+        return rate > 0 ? new TokenBucket[]{new TokenBucket("global", rate, rate)} : new TokenBucket[0];
+    });
+    /**
+     * 每个客户端IP的下载限速: 属性 throttle.ip (字节/秒). IP -> {@link TokenBucket}
+     */
+    protected final Map<String, TokenBucket> ipThrottles = new ConcurrentHashMap<>();
+    /**
+     * Server-Sent Events 连接
+     */
+    protected final Set<SseEmitter> sseEmitters = ConcurrentHashMap.newKeySet();
+    /**
+     * 定时器: 异步响应超时等
+     */
+    protected final Lazies<ScheduledExecutorService> _timer = new Lazies<>(() -> Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "http-timer");
+        t.setDaemon(true);
+        return t;
+    }));
+    /**
+     * Server-Sent Events 心跳定时任务: 第一个连接时开始
+     */
+    protected final Lazies<ScheduledFuture<?>> _sseHeartbeat = new Lazies<>(() -> {
+        long interval = getLong("sse.heartbeat", 15000L);
+        return _timer.get().scheduleWithFixedDelay(() -> heartbeat(interval), interval, interval, TimeUnit.MILLISECONDS);
+    });
 
 
     /**
@@ -108,6 +167,20 @@ public class HttpServer {
      *              writeTimeout: 数据写入超时时间. 单位:毫秒
      *              connection.maxIdle: 连接最大存活时间
      *              maxConnection: 最大连接数
+     *              concurrency./前缀/路径: 路由最大并发数; concurrency./前缀/*: 前缀下所有路由最大并发数 {@link Bulkhead}
+     *              timeout./前缀/路径: 路由执行超时时间, 超时响应 504. 单位:毫秒
+     *              compress: 是否开启响应压缩(gzip, deflate). 默认 true
+     *              compress.minSize: 最小压缩长度. 默认 1024
+     *              compress.level: 压缩级别 1-9
+     *              compress.types: 可压缩的响应类型
+     *              chunk.adaptive: 是否按连接写出速度调整分块大小. 默认 true
+     *              chunk.min, chunk.max: 分块大小范围. 默认 8K, 1M
+     *              chunk.targetTime: 一块的目标写出时间. 单位:毫秒. 默认 100
+     *              staticCache.maxSize: 静态文件缓存总大小. 默认 64M, 0: 不缓存
+     *              staticCache.maxFileSize: 缓存的单个文件最大长度. 默认 1M
+     *              sse.heartbeat: Server-Sent Events 空闲心跳间隔. 单位:毫秒. 默认15秒
+     *              sse.retry: Server-Sent Events 客户端重连间隔. 单位:毫秒
+     *              asyncTimeout: 异步响应(返回 {@link CompletionStage})超时时间. 单位:毫秒. 默认60秒
      * @param exec 线程池
      */
     public HttpServer(Map<String, Object> attrs, ExecutorService exec) {
@@ -163,7 +236,9 @@ public class HttpServer {
     public void stop() {
         enabled = false;
         try { if (connections.size() > 2) { Thread.sleep(1000L); } ssc.close(); } catch (Exception e) {/** ignore **/}
+        for (SseEmitter emitter : sseEmitters) emitter.close();
         exec.shutdown();
+        _timer.get().shutdownNow();
     }
 
 
@@ -195,6 +270,8 @@ public class HttpServer {
                         else pieceUpload(finalHCtx, uploadId);
                     } catch (Exception ex) {
                         errHandle(ex, finalHCtx);
+                    } finally {
+                        if (request.session.ws != null && request.session.resume()) request.session.read(); // WebSocket 握手完成
                     }
                 });
             } else {
@@ -310,6 +387,7 @@ public class HttpServer {
 
     /**
      * 添加
+     * 存在编译时生成的路由表 {@link CtrlRoutes} 时, 由路由表创建控制层对象
      * @param clzs 包含 {@link Ctrl} 的类
      * @return {@link HttpServer}
      */
@@ -317,7 +395,12 @@ public class HttpServer {
         if (clzs == null || clzs.length < 1) return this;
         try {
             for (Class clz : clzs) {
-                ctrls.add(clz.newInstance());
+                CtrlRoutes routes = ctrlRoutes(clz);
+                if (routes == null) ctrls.add(clz.newInstance());
+                else {
+                    ctrlRoutes.put(clz, routes);
+                    ctrls.add(routes.create());
+                }
             }
         } catch (Exception e) {
             throw new RuntimeException("Create object error.", e);
@@ -326,6 +409,37 @@ public class HttpServer {
     }
 
 
+    /**
+     * 加载编译时生成的路由表: 类名 + $$Routes {@link RouteProcessor}
+     * @param clz 控制层类
+     * @return {@link CtrlRoutes} 或 null
+     */
+    protected CtrlRoutes ctrlRoutes(Class clz) {
+        try {
+            Class<?> c = Class.forName(clz.getName() + "$$Routes", true, clz.getClassLoader());
+            return (CtrlRoutes) c.newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            log.warn("Load route table error. " + clz.getName(), e);
+            return null;
+        }
+    }
+
+
+    /**
+     * 添加参数类型转换器
+     * 在 {@link #start()} 之前添加, 解析 {@link Ctrl} 时为每个参数确定转换函数
+     * @param type 参数类型
+     * @param fn 转换函数. 入参为请求中的原始值(String, List, {@link FileData}...)
+     * @return {@link HttpServer}
+     */
+    public <T> HttpServer converter(Class<T> type, Function<Object, T> fn) {
+        converters.register(type, fn);
+        return this;
+    }
+
+
     /**
      * 初始化Chain
      */
@@ -340,103 +454,130 @@ public class HttpServer {
                 log.warn("@Ctrl Not Fund in: " + ctrl.getClass().getName());
             }
         }
+        chain.compile();
     }
 
 
     /**
      * 解析 @Ctrl 类
+     * 有编译时生成的路由表 {@link CtrlRoutes} 则用路由表, 否则反射解析
      * @param ctrl 控制层类
      * @param chain 解析到哪个 {@link Chain}
      */
     protected void parseCtrl(Object ctrl, Chain chain) {
-        Ctrl aCtrl = ctrl.getClass().getAnnotation(Ctrl.class);
-        Consumer<Method> parser = method -> { // Handler 解析函数
-            Path aPath = method.getAnnotation(Path.class);
-            if (aPath != null) { // 路径映射
-                if (aPath.path().length < 1) {
-                    log.error("@Path path must not be empty. {}#{}", ctrl.getClass(), method.getName());
-                    return;
-                }
-                Parameter[] ps = method.getParameters();
-                method.setAccessible(true);
-                for (String path : aPath.path()) {
-                    if (path == null || path.isEmpty()) {
-                        log.error("@Path path must not be empty. {}#{}", ctrl.getClass().getName(), method.getName());
-                        return;
-                    }
-                    log.info("Request mapping: /" + (((aCtrl.prefix() != null && !aCtrl.prefix().isEmpty()) ? aCtrl.prefix() + "/" : "") + ("/".equals(path) ? "" : path)));
-                    chain.method(aPath.method(), path, aPath.consumer(), aPath.produce(), hCtx -> { // 实际@Path 方法 调用
-                        try {
-                            Object result = method.invoke(ctrl, Arrays.stream(ps).map((p) -> hCtx.param(p.getName(), p.getType())).toArray());
-                            if (!void.class.isAssignableFrom(method.getReturnType())) {
-                                log.debug("Invoke Handler '{}#{}', result: {}, requestId: {}", ctrl.getClass().getName(), method.getName(), result, hCtx.request.getId());
-                                hCtx.render(result);
-                            }
-                        } catch (InvocationTargetException ex) {
-                            throw ex.getCause();
-                        }
-                    });
-                }
-                return;
+        CtrlRoutes routes = ctrlRoutes.get(ctrl.getClass());
+        for (CtrlRoutes.Mapping mapping : routes == null ? reflectMappings(ctrl.getClass()) : routes.mappings()) {
+            parseMapping(ctrl, mapping, chain);
+        }
+    }
+
+
+    /**
+     * 反射解析 @Ctrl 类中的 {@link Path}, {@link Filter}, {@link WS} 方法
+     * @param clz 控制层类
+     * @return {@link CtrlRoutes.Mapping}
+     */
+    protected List<CtrlRoutes.Mapping> reflectMappings(Class clz) {
+        List<CtrlRoutes.Mapping> mappings = new LinkedList<>();
+        Class c = clz;
+        do {
+            for (Method m : c.getDeclaredMethods()) {
+                Path aPath = m.getAnnotation(Path.class);
+                Filter aFilter = aPath == null ? m.getAnnotation(Filter.class) : null;
+                WS aWS = aPath == null && aFilter == null ? m.getAnnotation(WS.class) : null;
+                if (aPath == null && aFilter == null && aWS == null) continue;
+                boolean returnVoid = void.class.isAssignableFrom(m.getReturnType());
+                Parameter[] ps = m.getParameters();
+                String[] names = Arrays.stream(ps).map(Parameter::getName).toArray(String[]::new);
+                Class<?>[] classes = m.getParameterTypes();
+                Type[] types = m.getGenericParameterTypes();
+                CtrlRoutes.Stub stub = Invoker.stub(m);
+                if (aPath != null) mappings.add(CtrlRoutes.Mapping.path(m.getName(), aPath.path(), aPath.method(), aPath.consumer(), aPath.produce(), aPath.concurrency(), aPath.timeout(), aPath.etag(), returnVoid, names, classes, types, stub));
+                else if (aFilter != null) mappings.add(CtrlRoutes.Mapping.filter(m.getName(), aFilter.path(), aFilter.order(), returnVoid, names, classes, types, stub));
+                else mappings.add(CtrlRoutes.Mapping.ws(m.getName(), aWS.path(), returnVoid, names, classes, types, stub));
             }
+            c = c.getSuperclass();
+        } while (c != null);
+        return mappings;
+    }
 
-            Filter aFilter = method.getAnnotation(Filter.class);
-            if (aFilter != null) { // Filter处理
-                if (!void.class.isAssignableFrom(method.getReturnType())) {
-                    log.error("@Filter return type must be void. {}#{}", ctrl.getClass().getName(), method.getName());
-                    return;
-                }
-                log.info("Request filter: /" + (aCtrl.prefix()) + ". {}#{}", ctrl.getClass().getName(), method.getName());
-                Parameter[] ps = method.getParameters();
-                method.setAccessible(true);
-                chain.filter(hCtx -> { // 实际@Filter 方法 调用
-                        method.invoke(ctrl, Arrays.stream(ps).map((p) -> hCtx.param(p.getName(), p.getType())).toArray());
-                }, aFilter.order());
+
+    /**
+     * 添加一个控制层方法到 {@link Chain}
+     * @param ctrl 控制层对象
+     * @param mapping 方法映射
+     * @param chain 解析到哪个 {@link Chain}
+     */
+    protected void parseMapping(Object ctrl, CtrlRoutes.Mapping mapping, Chain chain) {
+        Ctrl aCtrl = ctrl.getClass().getAnnotation(Ctrl.class);
+        if (Path.class.equals(mapping.type)) { // 路径映射
+            if (mapping.path.length < 1) {
+                log.error("@Path path must not be empty. {}#{}", ctrl.getClass(), mapping.name);
                 return;
             }
-
-            WS aWS = method.getAnnotation(WS.class);
-            if (aWS != null) { // WS(websocket) 处理
-                if (!void.class.isAssignableFrom(method.getReturnType())) {
-                    log.error("@WS return type must be void. {}#{}", ctrl.getClass().getName(), method.getName());
+            Invoker invoker = new Invoker(this, ctrl, mapping);
+            for (String path : mapping.path) {
+                if (path == null || path.isEmpty()) {
+                    log.error("@Path path must not be empty. {}#{}", ctrl.getClass().getName(), mapping.name);
                     return;
                 }
-                if (!(method.getParameterCount() == 1 && WebSocket.class.equals(method.getParameters()[0].getType()))) {
-                    log.error("@WS parameter must be WebSocket. {}#{}", ctrl.getClass().getName(), method.getName());
-                    return;
-                }
-                method.setAccessible(true);
-                log.info("WebSocket: /" + (((aCtrl.prefix() != null && !aCtrl.prefix().isEmpty()) ? aCtrl.prefix() + "/" : "") + aWS.path()));
-                chain.ws(aWS.path(), hCtx -> {
-                    try {
-                        // 响应握手
-                        hCtx.response.status(101);
-                        hCtx.response.header("Upgrade", "websocket");
-                        hCtx.response.header("Connection", "Upgrade");
-
-                        byte[] bs1 = hCtx.request.getHeader("Sec-WebSocket-Key").getBytes(getCharset());
-                        byte[] bs2 = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11".getBytes(getCharset());
-                        byte[] bs = new byte[bs1.length + bs2.length];
-                        System.arraycopy(bs1, 0, bs, 0, bs1.length);
-                        System.arraycopy(bs2, 0, bs, bs1.length, bs2.length);
-                        hCtx.response.header("Sec-WebSocket-Accept", Base64.getEncoder().encodeToString(sha1(bs)));
-                        hCtx.response.header("Sec-WebSocket-Location", "ws://" + getHp() + "/" + aCtrl.prefix() + "/" + aWS.path());
-                        hCtx.render(null);
-
-                        method.invoke(ctrl, hCtx.aioStream.ws);
-                    } catch (InvocationTargetException ex) {
-                        log.error("", ex.getCause());
-                        hCtx.close();
+                log.info("Request mapping: /" + (((aCtrl.prefix() != null && !aCtrl.prefix().isEmpty()) ? aCtrl.prefix() + "/" : "") + ("/".equals(path) ? "" : path)));
+                chain.method(mapping.method, path, mapping.consumer, mapping.produce, mapping.concurrency, mapping.timeout, mapping.etag, hCtx -> { // 实际@Path 方法 调用
+                    Object result = invoker.invoke(hCtx);
+                    if (!mapping.returnVoid) {
+                        log.debug("Invoke Handler '{}#{}', result: {}, requestId: {}", ctrl.getClass().getName(), mapping.name, result, hCtx.request.getId());
+                        hCtx.render(result);
                     }
                 });
+            }
+        } else if (Filter.class.equals(mapping.type)) { // Filter处理
+            if (!mapping.returnVoid) {
+                log.error("@Filter return type must be void. {}#{}", ctrl.getClass().getName(), mapping.name);
                 return;
             }
-        };
-        Class c = ctrl.getClass();
-        do {
-            for (Method m : c.getDeclaredMethods()) { parser.accept(m); }
-            c = c.getSuperclass();
-        } while (c != null);
+            log.info("Request filter: /" + (aCtrl.prefix()) + (mapping.path.length > 0 ? " " + Arrays.toString(mapping.path) : "") + ". {}#{}", ctrl.getClass().getName(), mapping.name);
+            Invoker invoker = new Invoker(this, ctrl, mapping);
+            chain.filter(mapping.path, invoker::invoke, mapping.order); // 实际@Filter 方法 调用
+        } else if (WS.class.equals(mapping.type)) { // WS(websocket) 处理
+            if (!mapping.returnVoid) {
+                log.error("@WS return type must be void. {}#{}", ctrl.getClass().getName(), mapping.name);
+                return;
+            }
+            if (!(mapping.paramClasses.length == 1 && WebSocket.class.equals(mapping.paramClasses[0]))) {
+                log.error("@WS parameter must be WebSocket. {}#{}", ctrl.getClass().getName(), mapping.name);
+                return;
+            }
+            String wsPath = mapping.path[0];
+            Invoker invoker = new Invoker(this, ctrl, mapping);
+            log.info("WebSocket: /" + (((aCtrl.prefix() != null && !aCtrl.prefix().isEmpty()) ? aCtrl.prefix() + "/" : "") + wsPath));
+            chain.ws(wsPath, hCtx -> {
+                try {
+                    // 响应握手
+                    hCtx.response.status(101);
+                    hCtx.response.header("Upgrade", "websocket");
+                    hCtx.response.header("Connection", "Upgrade");
+
+                    byte[] bs1 = hCtx.request.getHeader("Sec-WebSocket-Key").getBytes(getCharset());
+                    byte[] bs2 = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11".getBytes(getCharset());
+                    byte[] bs = new byte[bs1.length + bs2.length];
+                    System.arraycopy(bs1, 0, bs, 0, bs1.length);
+                    System.arraycopy(bs2, 0, bs, bs1.length, bs2.length);
+                    hCtx.response.header("Sec-WebSocket-Accept", Base64.getEncoder().encodeToString(sha1(bs)));
+                    WsDeflate deflate = WsDeflate.negotiate(hCtx.request.getHeader("Sec-WebSocket-Extensions"), this);
+                    if (deflate != null) { // permessage-deflate 压缩
+                        hCtx.aioStream.ws.deflate = deflate;
+                        hCtx.response.header("Sec-WebSocket-Extensions", deflate.response());
+                    }
+                    hCtx.response.header("Sec-WebSocket-Location", "ws://" + getHp() + "/" + aCtrl.prefix() + "/" + wsPath);
+                    hCtx.render(null);
+
+                    invoker.invoke(hCtx);
+                } catch (Throwable ex) {
+                    log.error("", ex);
+                    hCtx.close();
+                }
+            });
+        }
     }
 
 
@@ -512,6 +653,9 @@ public class HttpServer {
      * 清除已关闭或已过期的连接
      */
     public void clean() {
+        if (!ipThrottles.isEmpty()) { // 移除空闲的客户端IP限速
+            ipThrottles.values().removeIf(b -> b.idle(TimeUnit.MINUTES.toNanos(1)));
+        }
         if (connections.isEmpty()) return;
         int size = connections.size();
         long httpExpire = Duration.ofSeconds(getInteger("connection.maxIdle",
@@ -565,19 +709,11 @@ public class HttpServer {
      */
     protected int chunkedSize(HttpContext hCtx, int size, Class type) {
         int chunkedSize = -1;
-        if (File.class.equals(type)) {
-            if (size > 1024 * 1024) { // 大于1M
-                chunkedSize = 1024 * 1024;
-            } else if (size > 1024 * 80) { // 大于80K
-                chunkedSize = 1024 * 20;
-            }
-            // 小文件不需要分段传送. 限于带宽(带宽必须大于分块的最小值, 否则会导致前端接收数据不全)
-        } else if (byte[].class.equals(type)) {
-            if (size > 1024 * 1024) { // 大于1M
-                chunkedSize = 1024 * 1024;
-            } else if (size > 1024 * 80) { // 大于80K
-                chunkedSize = 1024 * 20;
+        if (File.class.equals(type) || byte[].class.equals(type)) {
+            if (size > 1024 * 80) { // 大于80K. 分块大小按连接速度调整
+                chunkedSize = adaptiveChunkSize(hCtx);
             }
+            // 小文件不需要分段传送
         } else {
             if (size > 1024 * 1024 * 10) throw new RuntimeException("body too large, > " + (1024 * 1024 * 10));
         }
@@ -586,6 +722,34 @@ public class HttpServer {
     }
 
 
+    /**
+     * 响应文件的限速: 全局, 路由, 客户端IP 三级令牌桶, 取最慢的
+     * @param hCtx HttpContext
+     * @return 需要取令牌的 {@link TokenBucket}. 空: 不限速
+     */
+    protected TokenBucket[] throttle(HttpContext hCtx) {
+        TokenBucket[] buckets = _throttle.get();
+        if (hCtx.route != null && hCtx.route.throttle != null) buckets = Router.append(buckets, hCtx.route.throttle);
+        long ipRate = getLong("throttle.ip", 0L);
+        if (ipRate > 0) {
+            String ip = hCtx.aioStream.getRemoteIp();
+            if (ip != null) buckets = Router.append(buckets, ipThrottles.computeIfAbsent(ip, k -> new TokenBucket(k, ipRate, ipRate)));
+        }
+        return buckets;
+    }
+
+
+    /**
+     * 按连接测量的写出速度计算分块大小 {@link HttpAioSession#chunkSize(int, int, long)}
+     * chunk.min: 最小分块. 默认 8K; chunk.max: 最大分块. 默认 1M; chunk.targetTime: 一块的目标写出时间(毫秒). 默认 100
+     * @param hCtx HttpContext
+     * @return 分块大小
+     */
+    protected int adaptiveChunkSize(HttpContext hCtx) {
+        return hCtx.aioStream.chunkSize(getInteger("chunk.min", 1024 * 8), getInteger("chunk.max", 1024 * 1024), getLong("chunk.targetTime", 100L));
+    }
+
+
     /**
      * 权限验证
      * @param permissions 权限名 验证用户是否有此权限
@@ -719,6 +883,41 @@ public class HttpServer {
     public Charset getCharset() { return _charset.get(); }
 
 
+    /**
+     * 添加 Server-Sent Events 连接: 定时发送心跳
+     * @param emitter {@link SseEmitter}
+     */
+    protected void sse(SseEmitter emitter) {
+        sseEmitters.add(emitter);
+        _sseHeartbeat.get();
+    }
+
+
+    /**
+     * 给空闲的 Server-Sent Events 连接发送心跳. 在线程池中执行, 不阻塞定时器
+     * @param interval 心跳间隔. 单位: 毫秒
+     */
+    protected void heartbeat(long interval) {
+        exec.execute(() -> {
+            for (SseEmitter emitter : sseEmitters) emitter.heartbeat(interval);
+        });
+    }
+
+
+    /**
+     * 所有隔离舱: 当前执行数, 拒绝数
+     * @return {@link Bulkhead}
+     */
+    public Collection<Bulkhead> getBulkheads() { return Collections.unmodifiableCollection(bulkheads.values()); }
+
+
+    /**
+     * 当前所有连接: 写出速度, 分块大小 {@link HttpAioSession#getWriteRate()}, {@link HttpAioSession#getChunkSize()}
+     * @return {@link HttpAioSession}
+     */
+    public Collection<HttpAioSession> getConnections() { return Collections.unmodifiableCollection(connections); }
+
+
     /**
      * 得到所有控制层对象
      * @return 所有 {@link Ctrl}
@@ -0,0 +1,99 @@
+package cn.xnatural.http;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.function.Function;
+
+/**
+ * 控制层方法调用器
+ * 解析 {@link Ctrl} 时生成: 调用桩 {@link CtrlRoutes.Stub} 和 每个参数的取值函数
+ * 请求时不再反射调用和流式组装参数
+ */
+class Invoker {
+    protected final Object                          ctrl;
+    protected final String                          name;
+    /**
+     * 调用桩: 编译时生成的 或 {@link #stub(Method)}
+     */
+    protected final CtrlRoutes.Stub                 stub;
+    /**
+     * 参数取值计划: 每个参数对应一个取值函数
+     */
+    protected final Function<HttpContext, Object>[] args;
+
+
+    /**
+     * 创建
+     * @param server {@link HttpServer}
+     * @param ctrl 控制层对象
+     * @param mapping 方法映射
+     */
+    Invoker(HttpServer server, Object ctrl, CtrlRoutes.Mapping mapping) {
+        this.ctrl = ctrl;
+        this.name = ctrl.getClass().getName() + "#" + mapping.name;
+        this.stub = mapping.stub;
+        this.args = new Function[mapping.paramNames.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = resolver(server, mapping.paramNames[i], mapping.paramClasses[i], mapping.paramTypes[i], mapping);
+        }
+    }
+
+
+    /**
+     * 反射方法的调用桩: {@link MethodHandle} 统一签名 (Object, Object[])Object
+     * @param method 方法
+     * @return {@link CtrlRoutes.Stub}
+     */
+    static CtrlRoutes.Stub stub(Method method) {
+        method.setAccessible(true);
+        try {
+            MethodHandle mh = MethodHandles.lookup().unreflect(method);
+            if (Modifier.isStatic(method.getModifiers())) mh = MethodHandles.dropArguments(mh, 0, Object.class);
+            MethodHandle handle = mh.asSpreader(Object[].class, method.getParameterCount())
+                    .asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+            return (ctrl, args) -> (Object) handle.invokeExact(ctrl, args);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Create invoker error. " + method.getDeclaringClass().getName() + "#" + method.getName(), e);
+        }
+    }
+
+
+    /**
+     * 参数取值函数
+     * @param server {@link HttpServer}
+     * @param name 参数名
+     * @param type 参数类型
+     * @param genericType 参数类型(包含泛型)
+     * @param mapping 方法映射
+     * @return 取值函数
+     */
+    protected Function<HttpContext, Object> resolver(HttpServer server, String name, Class<?> type, Type genericType, CtrlRoutes.Mapping mapping) {
+        if (HttpContext.class.isAssignableFrom(type)) return hCtx -> hCtx;
+        if (HttpServer.class.isAssignableFrom(type)) return hCtx -> hCtx.server;
+        if (WebSocket.class.equals(type)) return hCtx -> hCtx.aioStream.ws;
+        if (SseEmitter.class.equals(type)) return HttpContext::sse;
+        boolean isPath = Path.class.equals(mapping.type);
+        if (isPath && ParamBinder.isBody(server, type)) return ParamBinder.body(genericType);
+        return ParamBinder.of(server, name, type, isPath ? mapping.path : null, isPath ? mapping.consumer : null);
+    }
+
+
+    /**
+     * 调用方法
+     * @param hCtx {@link HttpContext}
+     * @return 方法返回值. void 方法返回 null
+     */
+    Object invoke(HttpContext hCtx) throws Throwable {
+        Object[] as = new Object[args.length];
+        for (int i = 0; i < as.length; i++) { as[i] = args[i].apply(hCtx); }
+        return stub.invoke(ctrl, as);
+    }
+
+
+    @Override
+    public String toString() { return name; }
+}
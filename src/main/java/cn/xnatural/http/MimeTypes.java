@@ -0,0 +1,102 @@
+package cn.xnatural.http;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 文件扩展名 -> Content-Type
+ */
+class MimeTypes {
+    protected static final Map<String, String> TYPES = new HashMap<>();
+
+    static {
+        // 文本
+        add("text/html", "html", "htm", "shtml");
+        add("text/css", "css");
+        add("text/plain", "txt", "text", "log", "conf", "ini", "properties");
+        add("text/csv", "csv");
+        add("text/markdown", "md", "markdown");
+        add("text/xml", "xml", "xsl", "xslt");
+        add("text/vtt", "vtt");
+        add("text/calendar", "ics");
+        add("text/x-vue", "vue");
+        add("application/javascript", "js", "mjs");
+        add("application/json", "json", "map");
+        add("application/manifest+json", "webmanifest");
+        add("application/ld+json", "jsonld");
+        add("application/xhtml+xml", "xhtml");
+        add("application/rss+xml", "rss");
+        add("application/atom+xml", "atom");
+        add("application/wasm", "wasm");
+        // 图片
+        add("image/png", "png");
+        add("image/jpeg", "jpg", "jpeg", "jpe");
+        add("image/gif", "gif");
+        add("image/webp", "webp");
+        add("image/avif", "avif");
+        add("image/bmp", "bmp");
+        add("image/svg+xml", "svg", "svgz");
+        add("image/x-icon", "ico");
+        add("image/tiff", "tif", "tiff");
+        add("image/apng", "apng");
+        // 字体
+        add("font/woff", "woff");
+        add("font/woff2", "woff2");
+        add("font/ttf", "ttf");
+        add("font/otf", "otf");
+        add("application/vnd.ms-fontobject", "eot");
+        // 音视频
+        add("audio/mpeg", "mp3");
+        add("audio/ogg", "ogg", "oga");
+        add("audio/wav", "wav");
+        add("audio/aac", "aac");
+        add("audio/flac", "flac");
+        add("audio/webm", "weba");
+        add("audio/mp4", "m4a");
+        add("video/mp4", "mp4", "m4v");
+        add("video/webm", "webm");
+        add("video/ogg", "ogv");
+        add("video/quicktime", "mov");
+        add("video/x-msvideo", "avi");
+        add("video/x-flv", "flv");
+        add("video/mpeg", "mpeg", "mpg");
+        add("application/vnd.apple.mpegurl", "m3u8");
+        add("video/mp2t", "ts");
+        // 文档
+        add("application/pdf", "pdf");
+        add("application/msword", "doc");
+        add("application/vnd.openxmlformats-officedocument.wordprocessingml.document", "docx");
+        add("application/vnd.ms-excel", "xls");
+        add("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", "xlsx");
+        add("application/vnd.ms-powerpoint", "ppt");
+        add("application/vnd.openxmlformats-officedocument.presentationml.presentation", "pptx");
+        add("application/rtf", "rtf");
+        add("application/epub+zip", "epub");
+        // 压缩包, 二进制
+        add("application/zip", "zip");
+        add("application/gzip", "gz", "tgz");
+        add("application/x-tar", "tar");
+        add("application/x-7z-compressed", "7z");
+        add("application/vnd.rar", "rar");
+        add("application/x-bzip2", "bz2");
+        add("application/java-archive", "jar", "war");
+        add("application/octet-stream", "bin", "exe", "dll", "so", "iso", "dmg", "class");
+    }
+
+
+    protected static void add(String type, String... exts) {
+        for (String ext : exts) TYPES.put(ext, type);
+    }
+
+
+    /**
+     * 文件名对应的 Content-Type
+     * @param fileName 文件名
+     * @return 未知扩展名返回 null
+     */
+    static String of(String fileName) {
+        int i = fileName.lastIndexOf('.');
+        if (i < 0 || i == fileName.length() - 1) return null;
+        return TYPES.get(fileName.substring(i + 1).toLowerCase());
+    }
+}
@@ -0,0 +1,165 @@
+package cn.xnatural.http;
+
+import com.alibaba.fastjson.JSONException;
+import com.alibaba.fastjson.parser.Feature;
+import com.alibaba.fastjson.parser.ParserConfig;
+
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * 方法参数绑定器
+ * 解析 {@link Ctrl} 时为每个参数创建: 启动时确定 取值来源 和 类型转换函数
+ */
+class ParamBinder implements Function<HttpContext, Object> {
+    /**
+     * 路径变量
+     */
+    static final Function<HttpContext, Map<String, Object>> PATH  = hCtx -> hCtx.pathToken;
+    /**
+     * 查询参数
+     */
+    static final Function<HttpContext, Map<String, Object>> QUERY = hCtx -> hCtx.request.getQueryParams();
+    /**
+     * 表单参数
+     */
+    static final Function<HttpContext, Map<String, Object>> FORM  = hCtx -> hCtx.request.getFormParams();
+    /**
+     * json 参数
+     */
+    static final Function<HttpContext, Map<String, Object>> JSON  = hCtx -> hCtx.request.getJsonParams();
+
+    protected final String                                      name;
+    /**
+     * 数组参数名后边加个[]. 不是数组时为空
+     */
+    protected final String                                      arrName;
+    /**
+     * 按顺序取值的来源
+     */
+    protected final Function<HttpContext, Map<String, Object>>[] sources;
+    /**
+     * 类型转换函数
+     */
+    protected final Function<Object, ?>                         converter;
+
+
+    ParamBinder(String name, Class<?> type, Function<HttpContext, Map<String, Object>>[] sources, Function<Object, ?> converter) {
+        this.name = name;
+        this.arrName = type.isArray() ? name + "[]" : null;
+        this.sources = sources;
+        this.converter = converter;
+    }
+
+
+    /**
+     * 创建参数绑定器
+     * @param server {@link HttpServer}
+     * @param name 参数名
+     * @param type 参数类型
+     * @param paths {@link Path#path()}. 为空时(例: {@link Filter}) 所有来源都取
+     * @param consumer {@link Path#consumer()}
+     * @return {@link ParamBinder}
+     */
+    static ParamBinder of(HttpServer server, String name, Class<?> type, String[] paths, String[] consumer) {
+        List<Function<HttpContext, Map<String, Object>>> ls = new ArrayList<>(4);
+        if (paths == null || isPathVar(name, paths)) ls.add(PATH);
+        ls.add(QUERY);
+        boolean form = paths == null || consumer == null || consumer.length == 0, json = form;
+        if (!form) {
+            for (String ct : consumer) {
+                ct = ct.toLowerCase();
+                if (ct.contains("form")) form = true;
+                if (ct.contains("json")) json = true;
+            }
+        }
+        if (form) ls.add(FORM);
+        if (json) ls.add(JSON);
+        return new ParamBinder(name, type, ls.toArray(new Function[0]), server.converters.converter(type));
+    }
+
+
+    /**
+     * 是否是请求体对象参数: 没有对应类型转换器的自定义 POJO 类
+     * {@link Map}, {@link Collection}(包括 fastjson JSONObject, JSONArray), 接口, 抽象类 仍按参数名取值
+     * @param server {@link HttpServer}
+     * @param type 参数类型
+     * @return true: 是
+     */
+    static boolean isBody(HttpServer server, Class<?> type) {
+        if (server.converters.supports(type)) return false;
+        if (Map.class.isAssignableFrom(type) || Collection.class.isAssignableFrom(type)) return false;
+        if (type.isInterface() || Modifier.isAbstract(type.getModifiers())) return false;
+        String name = type.getName();
+        return !(name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("com.alibaba.fastjson."));
+    }
+
+
+    /**
+     * 请求体对象参数绑定: json body 直接反序列化成参数类型, 不经过 {@link HttpRequest#getJsonParams()}
+     * 非 json 请求为空. json 格式错误时响应 400
+     * @param type 参数类型(包含泛型)
+     * @return 取值函数
+     */
+    static Function<HttpContext, Object> body(Type type) {
+        ParserConfig.getGlobalInstance().getDeserializer(type); // 预先生成反序列化器
+        return hCtx -> {
+            String ct = hCtx.request.getContentType();
+            String bodyStr = hCtx.request.getBodyStr();
+            if (bodyStr == null || bodyStr.isEmpty() || ct == null || !ct.toLowerCase().contains("application/json")) return null;
+            Map<Type, Object> bodies = hCtx.bodies;
+            if (bodies != null && bodies.containsKey(type)) return bodies.get(type); // 同类型的多个参数只解析一次
+            try {
+                Object v = com.alibaba.fastjson.JSON.parseObject(bodyStr, type, Feature.AllowComment, Feature.AllowSingleQuotes);
+                if (bodies == null) hCtx.bodies = bodies = new HashMap<>(2);
+                bodies.put(type, v);
+                return v;
+            } catch (JSONException ex) {
+                hCtx.response.status(400);
+                throw new IllegalArgumentException("Request body is not valid json: " + ex.getMessage(), ex);
+            }
+        };
+    }
+
+
+    /**
+     * 参数名是否是路径变量. 例: :name, :name.js, ~:name
+     * @param name 参数名
+     * @param paths 路径
+     * @return true: 是
+     */
+    static boolean isPathVar(String name, String[] paths) {
+        for (String path : paths) {
+            if (path == null) continue;
+            for (String piece : path.split("/")) {
+                String var = piece.startsWith(":") ? piece.substring(1) : piece.startsWith("~:") ? piece.substring(2) : null;
+                if (var == null) continue;
+                int index = var.indexOf('.');
+                if (name.equals(index == -1 ? var : var.substring(0, index))) return true;
+            }
+        }
+        return false;
+    }
+
+
+    @Override
+    public Object apply(HttpContext hCtx) {
+        Object v = find(hCtx, name);
+        if (v == null && arrName != null) v = find(hCtx, arrName);
+        return v == null ? null : converter.apply(v);
+    }
+
+
+    /**
+     * 依次从来源中取值
+     */
+    protected Object find(HttpContext hCtx, String pName) {
+        for (Function<HttpContext, Map<String, Object>> source : sources) {
+            Object v = source.apply(hCtx).get(pName);
+            if (v != null) return v;
+        }
+        return null;
+    }
+}
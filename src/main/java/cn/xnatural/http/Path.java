@@ -30,4 +30,23 @@ public @interface Path {
      * @return
      */
     String produce() default "";
+    /**
+     * 最大并发执行数, 超过时响应 503. 0: 不限制 {@link Bulkhead}
+     * 可由属性 concurrency./前缀/路径 覆盖
+     * @return
+     */
+    int concurrency() default 0;
+    /**
+     * 执行超时时间(单位: 毫秒), 超时响应 504 并中断执行线程或取消异步响应. 0: 不限制
+     * 可由属性 timeout./前缀/路径 覆盖
+     * @return
+     */
+    long timeout() default 0;
+    /**
+     * 是否为响应(String, byte[], json)自动生成弱 ETag, 请求 If-None-Match 一致时响应 304
+     * 内容超出响应缓冲区(chunked)时不生成. {@link ApiResp} 不设置 traceNo
+     * 可由属性 etag./前缀/路径 覆盖
+     * @return
+     */
+    boolean etag() default false;
 }
@@ -1,8 +1,5 @@
 package cn.xnatural.http;
 
-import java.util.Objects;
-import java.util.stream.Collectors;
-
 /**
  * 路径处理器
  * 一个请求只对应一个 {@link PathHandler}
@@ -28,21 +25,7 @@ abstract class PathHandler implements Handler {
 
 
     // 匹配的先后顺序, 越大越先匹配
-    private Lazies<Double> _order = new Lazies<>(() -> {
-        if (pieces() == null) return Double.MAX_VALUE;
-        double i = pieces().length;
-        for (String piece : pieces()) {
-            if (piece.startsWith(":")) {
-                if (piece.indexOf('.') > 0) i += 0.01d;
-                continue;
-            } else if (piece.startsWith("~:")) {
-                i += 0.001d;
-                continue;
-            }
-            i += 0.1d;
-        }
-        return i;
-    });
+    private Lazies<Double> _order = new Lazies<>(() -> order(pieces()));
     @Override
     public double getOrder() { return _order.get(); }
 
@@ -52,36 +35,60 @@ abstract class PathHandler implements Handler {
 
 
     /**
-     * 路径匹配
-     * @param hCtx
-     * @return
+     * 路径匹配之后的请求条件判断(请求方法, Content-Type等)
+     * 路径匹配由 {@link Router} 完成
+     * @param hCtx {@link HttpContext}
+     * @return 0: 匹配; 不匹配时对应的响应状态码. 例: 405, 415
      */
-    @Override
-    public boolean match(HttpContext hCtx) {
-        // 不匹配: 请求路径片 少于 当前handler路径片
-        if (hCtx.pieces.size() < pieces().length) return false;
-        for (int i = 0; i < pieces().length; i++) { // 依次遍历路径的每个分片进行匹配
-            if (pieces()[i].startsWith(":")) { // 路径变量
-                int index = pieces()[i].indexOf('.');
-                if (index == -1) { // 冒号变量片. 例: ":fName"
-                    String v;
-                    if ((i + 1) == pieces().length && hCtx.pieces.size() > pieces().length) {
-                        // 最后一个. 例: 请求路径: /p1/p2/p3, 当前Handler路径: /p2/:var, 则var路径变量的值为: p2/p3
-                        v = hCtx.pieces.stream().skip(i).collect(Collectors.joining("/"));
-                    } else v = hCtx.pieces.get(i);
-                    hCtx.pathToken.put(pieces()[i].substring(1), v); // 填充路径变量
-                } else { // 冒号变量片. 例: ":fName.js"
-                    int index2 = hCtx.pieces.get(i).indexOf('.');
-                    if (index2 > 0 && Objects.equals(pieces()[i].substring(index), hCtx.pieces.get(i).substring(index2))) {
-                        hCtx.pathToken.put(pieces()[i].substring(1, index), hCtx.pieces.get(i).substring(0, index2)); // 填充路径变量
-                    } else return false;
-                }
-            } else if (!Objects.equals(pieces()[i], hCtx.pieces.get(i))) {// 路径不匹配: 只有要一个路径片不一样
-                hCtx.pathToken.clear();
-                return false;
+    int reject(HttpContext hCtx) { return 0; }
+
+
+    /**
+     * 被选中处理当前请求时调用
+     * @param hCtx {@link HttpContext}
+     */
+    void matched(HttpContext hCtx) {}
+
+
+    /**
+     * 最大并发执行数 {@link Bulkhead}
+     * @return 0: 不限制
+     */
+    int concurrency() { return 0; }
+
+
+    /**
+     * 执行超时时间. 单位: 毫秒
+     * @return 0: 不限制
+     */
+    long timeout() { return 0; }
+
+
+    /**
+     * 是否自动生成 ETag {@link Path#etag()}
+     */
+    boolean etag() { return false; }
+
+
+    /**
+     * 计算路径匹配的先后顺序, 越大越先匹配
+     * 路径片越多越先匹配, 相同个数时: 字面量 > :var.ext > :var > ~:var
+     * @param pieces 路径片
+     * @return 顺序值
+     */
+    static double order(String[] pieces) {
+        if (pieces == null) return Double.MAX_VALUE;
+        double i = pieces.length;
+        for (String piece : pieces) {
+            if (piece.startsWith(":")) {
+                if (piece.indexOf('.') > 0) i += 0.01d;
+                continue;
+            } else if (piece.startsWith("~:")) {
+                i += 0.001d;
+                continue;
             }
+            i += 0.1d;
         }
-        return true;
+        return i;
     }
-
 }
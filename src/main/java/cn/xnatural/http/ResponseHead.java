@@ -0,0 +1,179 @@
+package cn.xnatural.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * http 响应头编码
+ * 起始行按 版本和状态码 预先编码, Date header 每秒刷新一次
+ * header 直接按 ASCII 写入线程复用的缓冲区, 不经过 String 拼接和字符集编码
+ */
+class ResponseHead {
+    protected static final byte[]     CRLF   = {'\r', '\n'};
+    protected static final byte[]     COLON  = {':', ' '};
+    protected static final byte[]     COOKIE = "Set-Cookie: ".getBytes(StandardCharsets.ISO_8859_1);
+    /**
+     * 预编码的起始行: 状态码 -> HTTP/1.1 200 OK\r\n
+     */
+    protected static final byte[][]   V11    = new byte[600][];
+    protected static final byte[][]   V10    = new byte[600][];
+    /**
+     * 缓存的 Date header
+     */
+    protected static volatile DateLine date;
+    /**
+     * 线程复用的缓冲区. 响应头写完(同步)之后即可复用
+     */
+    protected static final ThreadLocal<Buf> BUF = ThreadLocal.withInitial(Buf::new);
+
+
+    static {
+        for (Integer status : HttpResponse.statusMsg.keySet()) {
+            V11[status] = line("1.1", status);
+            V10[status] = line("1.0", status);
+        }
+    }
+
+
+    static byte[] line(String version, int status) {
+        return ("HTTP/" + version + " " + status + " " + HttpResponse.statusMsg.get(status) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+
+    /**
+     * 起始行
+     * @param version http 版本
+     * @param status 状态码
+     */
+    static byte[] statusLine(String version, int status) {
+        byte[][] lines = "1.1".equals(version) ? V11 : "1.0".equals(version) ? V10 : null;
+        byte[] bs = lines != null && status >= 0 && status < lines.length ? lines[status] : null;
+        return bs == null ? line(version, status) : bs;
+    }
+
+
+    /**
+     * Date header. 同一秒内复用
+     */
+    static byte[] date() {
+        long second = System.currentTimeMillis() / 1000;
+        DateLine d = date;
+        if (d == null || d.second != second) {
+            date = d = new DateLine(second, ("date: " + httpDate(second * 1000) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return d.bytes;
+    }
+
+
+    /**
+     * http 日期格式. 例: Tue, 3 Jun 2008 11:05:30 GMT
+     * @param millis 毫秒时间
+     */
+    static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
+
+
+    /**
+     * 解析 http 日期
+     * @param str http 日期字符串
+     * @return 毫秒时间. 格式错误返回 -1
+     */
+    static long parseHttpDate(String str) {
+        try {
+            return ZonedDateTime.parse(str.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (Exception ex) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * 编码响应头: 起始行, Date, header, cookie
+     * 返回的 {@link ByteBuffer} 在当前线程下次编码前有效
+     * @param version http 版本
+     * @param response {@link HttpResponse}
+     * @param charset 非 ASCII header 值的编码
+     * @return {@link ByteBuffer}
+     */
+    static ByteBuffer encode(String version, HttpResponse response, Charset charset) {
+        Buf buf = BUF.get();
+        buf.len = 0;
+        buf.write(statusLine(version, response.status));
+        if (!response.headers.containsKey("date")) buf.write(date());
+        for (Map.Entry<String, String> e : response.headers.entrySet()) {
+            if (e.getValue() == null) continue;
+            buf.ascii(e.getKey(), charset);
+            buf.write(COLON);
+            buf.ascii(e.getValue(), charset);
+            buf.write(CRLF);
+        }
+        for (Map.Entry<String, String> e : response.cookies.entrySet()) {
+            buf.write(COOKIE);
+            buf.ascii(e.getKey(), charset);
+            buf.write((byte) '=');
+            buf.ascii(e.getValue(), charset);
+            buf.write(CRLF);
+        }
+        buf.write(CRLF);
+        return ByteBuffer.wrap(buf.bytes, 0, buf.len);
+    }
+
+
+    protected static class DateLine {
+        final long   second;
+        final byte[] bytes;
+
+        DateLine(long second, byte[] bytes) {
+            this.second = second;
+            this.bytes = bytes;
+        }
+    }
+
+
+    /**
+     * 可增长的字节缓冲
+     */
+    protected static class Buf {
+        byte[] bytes = new byte[512];
+        int    len;
+
+        void ensure(int n) {
+            if (len + n > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, len + n));
+        }
+
+        void write(byte b) {
+            ensure(1);
+            bytes[len++] = b;
+        }
+
+        void write(byte[] bs) {
+            ensure(bs.length);
+            System.arraycopy(bs, 0, bytes, len, bs.length);
+            len += bs.length;
+        }
+
+        /**
+         * 按 ASCII 写入, 包含非 ASCII 字符时按 charset 编码
+         */
+        void ascii(String s, Charset charset) {
+            int n = s.length();
+            ensure(n);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    write(s.substring(i).getBytes(charset));
+                    return;
+                }
+                bytes[len++] = (byte) c;
+            }
+        }
+    }
+}
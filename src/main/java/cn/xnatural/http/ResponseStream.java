@@ -0,0 +1,78 @@
+package cn.xnatural.http;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * 流式响应输出: 边生成边发送(例: 导出 csv, 遍历数据库游标)
+ * 数据先写入缓冲区, 缓冲区满或 {@link #flush()} 时以 chunked 分块发送;
+ * 关闭前数据未超出缓冲区且没有 flush, 则用 Content-Length 一次发送
+ * 写入在数据发送到连接之前阻塞, 生产速度受客户端接收速度限制
+ * 可在其它线程中写入. 必须 {@link #close()} 结束响应
+ */
+public class ResponseStream extends OutputStream {
+    protected final HttpContext      hCtx;
+    protected final BodyOutputStream body;
+    /**
+     * 字符编码写入 {@link #body}
+     */
+    protected       Writer           chars;
+    protected       Writer           writer;
+
+
+    ResponseStream(HttpContext hCtx) {
+        this.hCtx = hCtx;
+        this.body = new BodyOutputStream(hCtx, false);
+    }
+
+
+    @Override
+    public void write(int b) throws IOException { body.write(b); }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException { body.write(b, off, len); }
+
+
+    /**
+     * 立即发送已写入的数据(作为一个 chunk)
+     */
+    @Override
+    public void flush() throws IOException {
+        if (chars != null) chars.flush();
+        body.flushChunk();
+    }
+
+
+    /**
+     * 字符输出. 按服务字符集编码
+     * @return {@link Writer}. 关闭时结束响应
+     */
+    public Writer writer() {
+        if (writer == null) {
+            chars = body.writer(hCtx.server.getCharset());
+            writer = new FilterWriter(chars) {
+                @Override
+                public void flush() throws IOException { ResponseStream.this.flush(); }
+
+                @Override
+                public void close() throws IOException { ResponseStream.this.close(); }
+            };
+        }
+        return writer;
+    }
+
+
+    /**
+     * 结束响应
+     */
+    @Override
+    public void close() throws IOException {
+        if (body.closed) return;
+        if (chars != null) chars.close(); // 结束字符编码并关闭 body
+        else body.close();
+        hCtx.determineClose();
+    }
+}
@@ -0,0 +1,206 @@
+package cn.xnatural.http;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.*;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * 编译时路由表生成器
+ * 为每个 {@link Ctrl} 类生成 {@link CtrlRoutes}: 类名 + $$Routes, 直接调用控制层方法, 启动时不再反射解析
+ * 控制层类或方法不可访问(例: private)时不生成, 运行时退回反射解析
+ */
+public class RouteProcessor extends AbstractProcessor {
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(Ctrl.class.getName());
+    }
+
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement clz : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(Ctrl.class))) {
+            if (clz.getModifiers().contains(Modifier.ABSTRACT) || !accessible(clz) || !constructable(clz)) continue;
+            List<ExecutableElement> methods = methods(clz);
+            if (methods == null) continue;
+            try {
+                generate(clz, methods);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Generate route table error. " + e.getMessage(), clz);
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * 控制层类是否可在同包中访问: 非 private 的顶层类或静态内部类
+     */
+    protected boolean accessible(TypeElement clz) {
+        for (Element e = clz; e instanceof TypeElement; e = e.getEnclosingElement()) {
+            if (e.getModifiers().contains(Modifier.PRIVATE)) return false;
+            if (e.getEnclosingElement() instanceof TypeElement && !e.getModifiers().contains(Modifier.STATIC)) return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * 是否有非 private 的无参构造器
+     */
+    protected boolean constructable(TypeElement clz) {
+        for (ExecutableElement c : ElementFilter.constructorsIn(clz.getEnclosedElements())) {
+            if (c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE)) return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * 收集类及父类中的 {@link Path}, {@link Filter}, {@link WS} 方法
+     * @return 有不可访问的方法时返回 null
+     */
+    protected List<ExecutableElement> methods(TypeElement clz) {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(clz);
+        List<ExecutableElement> ls = new LinkedList<>();
+        for (TypeElement c = clz; c != null; ) {
+            for (ExecutableElement m : ElementFilter.methodsIn(c.getEnclosedElements())) {
+                if (m.getAnnotation(Path.class) == null && m.getAnnotation(Filter.class) == null && m.getAnnotation(WS.class) == null) continue;
+                Set<Modifier> ms = m.getModifiers();
+                boolean samePkg = pkg.equals(processingEnv.getElementUtils().getPackageOf(c));
+                if (ms.contains(Modifier.PRIVATE) || (!ms.contains(Modifier.PUBLIC) && !samePkg) || !m.getTypeParameters().isEmpty()) return null;
+                ls.add(m);
+            }
+            TypeMirror sup = c.getSuperclass();
+            c = sup.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) sup).asElement() : null;
+        }
+        return ls;
+    }
+
+
+    /**
+     * 生成路由表源文件
+     */
+    protected void generate(TypeElement clz, List<ExecutableElement> methods) throws IOException {
+        String pkg = processingEnv.getElementUtils().getPackageOf(clz).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(clz).toString();
+        String simpleName = (pkg.isEmpty() ? binaryName : binaryName.substring(pkg.length() + 1)) + "$$Routes";
+        String ctrl = clz.getQualifiedName().toString();
+
+        StringBuilder sb = new StringBuilder();
+        if (!pkg.isEmpty()) sb.append("package ").append(pkg).append(";\n\n");
+        sb.append("import cn.xnatural.http.CtrlRoutes;\n\n");
+        sb.append("/**\n * ").append(ctrl).append(" 路由表. 由 ").append(RouteProcessor.class.getName()).append(" 生成\n */\n");
+        sb.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+        sb.append("public final class ").append(simpleName).append(" implements CtrlRoutes {\n\n");
+        sb.append("    @Override\n    public Object create() { return new ").append(ctrl).append("(); }\n\n\n");
+        sb.append("    @Override\n    public java.util.List<Mapping> mappings() {\n");
+        sb.append("        return java.util.Arrays.asList(");
+        for (Iterator<ExecutableElement> it = methods.iterator(); it.hasNext(); ) {
+            sb.append("\n            ").append(mapping(ctrl, it.next())).append(it.hasNext() ? "," : "");
+        }
+        sb.append("\n        );\n    }\n}\n");
+
+        try (Writer w = processingEnv.getFiler().createSourceFile(pkg.isEmpty() ? simpleName : pkg + "." + simpleName, clz).openWriter()) {
+            w.write(sb.toString());
+        }
+    }
+
+
+    /**
+     * 一个方法的 {@link CtrlRoutes.Mapping} 创建语句
+     */
+    protected String mapping(String ctrl, ExecutableElement m) {
+        String name = m.getSimpleName().toString();
+        boolean returnVoid = m.getReturnType().getKind() == TypeKind.VOID;
+        StringJoiner names = new StringJoiner(", ", "new String[]{", "}");
+        StringJoiner classes = new StringJoiner(", ", "new Class[]{", "}");
+        StringJoiner types = new StringJoiner(", ", "new java.lang.reflect.Type[]{", "}");
+        StringJoiner args = new StringJoiner(", ");
+        int i = 0;
+        for (VariableElement p : m.getParameters()) {
+            String erasure = processingEnv.getTypeUtils().erasure(p.asType()).toString();
+            names.add(literal(p.getSimpleName().toString()));
+            classes.add(erasure + ".class");
+            types.add(genericType(p.asType(), erasure));
+            args.add("(" + erasure + ") a[" + (i++) + "]");
+        }
+        String invoke = (m.getModifiers().contains(Modifier.STATIC) ? ((TypeElement) m.getEnclosingElement()).getQualifiedName() : "((" + ctrl + ") c)") + "." + name + "(" + args + ")";
+        String stub = returnVoid ? "(c, a) -> { " + invoke + "; return null; }" : "(c, a) -> " + invoke;
+        String params = returnVoid + ", " + names + ", " + classes + ", " + types + ", " + stub;
+
+        Path aPath = m.getAnnotation(Path.class);
+        if (aPath != null) {
+            return "Mapping.path(" + literal(name) + ", " + literals(aPath.path()) + ", " + literal(aPath.method()) + ", "
+                    + literals(aPath.consumer()) + ", " + literal(aPath.produce()) + ", " + aPath.concurrency() + ", " + aPath.timeout() + "L, " + aPath.etag() + ", " + params + ")";
+        }
+        Filter aFilter = m.getAnnotation(Filter.class);
+        if (aFilter != null) return "Mapping.filter(" + literal(name) + ", " + literals(aFilter.path()) + ", " + aFilter.order() + ", " + params + ")";
+        return "Mapping.ws(" + literal(name) + ", " + literal(m.getAnnotation(WS.class).path()) + ", " + params + ")";
+    }
+
+
+    /**
+     * 参数的泛型类型表达式: 有泛型参数时用 TypeReference 取, 否则用 Class
+     */
+    protected String genericType(TypeMirror type, String erasure) {
+        if (type.getKind() == TypeKind.DECLARED && !((DeclaredType) type).getTypeArguments().isEmpty() && !hasTypeVar(type)) {
+            return "new com.alibaba.fastjson.TypeReference<" + type + ">(){}.getType()";
+        }
+        return erasure + ".class";
+    }
+
+
+    protected boolean hasTypeVar(TypeMirror type) {
+        switch (type.getKind()) {
+            case TYPEVAR: return true;
+            case ARRAY: return hasTypeVar(((ArrayType) type).getComponentType());
+            case WILDCARD:
+                WildcardType w = (WildcardType) type;
+                return (w.getExtendsBound() != null && hasTypeVar(w.getExtendsBound())) || (w.getSuperBound() != null && hasTypeVar(w.getSuperBound()));
+            case DECLARED:
+                for (TypeMirror t : ((DeclaredType) type).getTypeArguments()) {
+                    if (hasTypeVar(t)) return true;
+                }
+                return false;
+            default: return false;
+        }
+    }
+
+
+    protected String literals(String[] arr) {
+        StringJoiner sj = new StringJoiner(", ", "new String[]{", "}");
+        for (String s : arr) sj.add(literal(s));
+        return sj.toString();
+    }
+
+
+    /**
+     * java 字符串字面量
+     */
+    protected String literal(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c == '\n') sb.append("\\n");
+            else if (c == '\r') sb.append("\\r");
+            else if (c == '\t') sb.append("\\t");
+            else if (c < 0x20 || c > 0x7e) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,497 @@
+package cn.xnatural.http;
+
+import java.util.*;
+
+/**
+ * 路由树: 由 {@link Chain} 编译而成的不可变 前缀树(trie)
+ * 每层节点对应一个路径片, 所有前缀(子Chain)被展开成完整路径
+ * 多个匹配时按 {@link PathHandler#order(String[])} 取优先级最高的一个: 字面量 > :var.ext > :var > ~:var
+ * 每个路由的 Filter 在编译时按限定路径 {@link FilterHandler#paths()} 解析成数组
+ * 每个路由的 {@link Bulkhead}(前缀的和路由自己的), 超时时间 在编译时解析
+ */
+class Router {
+    /**
+     * 根节点
+     */
+    protected final Node       root = new Node();
+    protected final HttpServer server;
+    /**
+     * 路由计数, 相同优先级先添加的先匹配
+     */
+    private int           seq;
+
+
+    /**
+     * 编译
+     * @param chain 根 {@link Chain}
+     */
+    Router(Chain chain) {
+        this.server = chain.server;
+        compile(chain, root, new LinkedList<>(), new Scope[0], new Bulkhead[0]);
+        root.freeze();
+    }
+
+
+    /**
+     * 递归展开 {@link Chain} 及其所有子 {@link Chain}
+     * @param chain 当前 {@link Chain}
+     * @param node 当前 {@link Chain} 前缀对应的节点
+     * @param prefix 前缀路径片
+     * @param parentFilters 上层的 Filter
+     * @param parentBulkheads 上层前缀的 {@link Bulkhead}
+     */
+    protected void compile(Chain chain, Node node, LinkedList<String> prefix, Scope[] parentFilters, Bulkhead[] parentBulkheads) {
+        Bulkhead chainBulkhead = bulkhead("/" + (prefix.isEmpty() ? "" : String.join("/", prefix) + "/") + "*", chain.concurrency);
+        Bulkhead[] bulkheads = chainBulkhead == null ? parentBulkheads : append(parentBulkheads, chainBulkhead);
+        List<Scope> fs = new ArrayList<>(Arrays.asList(parentFilters));
+        for (Handler h : chain.handlers) {
+            if (h instanceof FilterHandler) fs.add(new Scope((FilterHandler) h, prefix.size()));
+        }
+        Scope[] filters = fs.toArray(new Scope[0]);
+        node.filters = filters;
+        for (Handler h : chain.handlers) {
+            if (h instanceof FilterHandler) continue;
+            if (!(h instanceof PathHandler)) throw new RuntimeException("Unknown Handler type: " + h.getClass().getName());
+            PathHandler ph = (PathHandler) h;
+            List<String> ps = new ArrayList<>(prefix);
+            ps.addAll(Arrays.asList(ph.pieces()));
+            String[] pieces = ps.toArray(new String[0]);
+            String name = pieces.length == 1 && "/".equals(pieces[0]) ? "/" : "/" + String.join("/", pieces);
+            Bulkhead bulkhead = bulkhead(name, ph.concurrency());
+            Route route = new Route(ph, pieces, resolve(filters, pieces), bulkhead == null ? bulkheads : append(bulkheads, bulkhead),
+                    server.getLong("timeout." + name, ph.timeout()), server.getBoolean("etag." + name, ph.etag()), throttle(name), seq++);
+            Node n = root;
+            for (String piece : route.pieces) { n = n.child(piece); }
+            n.routes.add(route);
+        }
+        for (Map.Entry<String, Chain> e : chain.subChains.entrySet()) {
+            prefix.addLast(e.getKey());
+            compile(e.getValue(), node.child(e.getKey()), prefix, filters, bulkheads);
+            prefix.removeLast();
+        }
+    }
+
+
+    /**
+     * 路由的下载限速: 属性 throttle.名称 (字节/秒). 同一路由的所有连接共享
+     * @param name 路由名称
+     * @return null: 不限速
+     */
+    protected TokenBucket throttle(String name) {
+        long rate = server.getLong("throttle." + name, 0L);
+        return rate > 0 ? new TokenBucket(name, rate, rate) : null;
+    }
+
+
+    /**
+     * 取或创建 {@link Bulkhead}. 属性 concurrency.名称 优先
+     * @param name 名称. 路由: /test/report, 前缀: /test/*
+     * @param concurrency 最大并发数
+     * @return null: 不限制
+     */
+    protected Bulkhead bulkhead(String name, int concurrency) {
+        int max = server.getInteger("concurrency." + name, concurrency);
+        if (max <= 0) {
+            server.bulkheads.remove(name);
+            return null;
+        }
+        return server.bulkheads.compute(name, (k, old) -> {
+            if (old != null && old.max == max) return old;
+            HttpServer.log.info("Bulkhead: {}, max: {}", k, max);
+            return new Bulkhead(k, max);
+        });
+    }
+
+
+    static <T> T[] append(T[] arr, T b) {
+        T[] result = Arrays.copyOf(arr, arr.length + 1);
+        result[arr.length] = b;
+        return result;
+    }
+
+
+    /**
+     * 解析路由执行的 Filter
+     * @param filters 路由所在 {@link Chain} 及上层的 Filter
+     * @param pieces 路由完整路径片
+     * @return 限定路径匹配的 Filter
+     */
+    protected FilterHandler[] resolve(Scope[] filters, String[] pieces) {
+        List<FilterHandler> ls = new ArrayList<>(filters.length);
+        for (Scope f : filters) {
+            if (f.covers(pieces)) ls.add(f.filter);
+        }
+        return ls.toArray(new FilterHandler[0]);
+    }
+
+
+    /**
+     * 查找请求对应的路由
+     * 找到时填充路径变量; 没找到时 可能设置响应状态(405, 415)
+     * @param hCtx {@link HttpContext}
+     * @return {@link Route} 或 null
+     */
+    protected Route match(HttpContext hCtx) {
+        String path = hCtx.request.getPath();
+        int[] segs = segments(path);
+        Match m = new Match(hCtx);
+        search(root, path, segs, 0, m);
+        if (m.route == null) {
+            if (m.rejectStatus > 0) hCtx.response.status(m.rejectStatus);
+            return null;
+        }
+        String[] pieces = m.route.pieces;
+        int count = segs.length / 2;
+        for (int i = 0; i < pieces.length; i++) { // 填充路径变量
+            String piece = pieces[i];
+            int start = segs[2 * i], end = segs[2 * i + 1];
+            if (piece.startsWith(":")) {
+                int index = piece.indexOf('.');
+                if (index == -1) { // 冒号变量片. 例: ":fName"
+                    // 最后一个. 例: 请求路径: /p1/p2/p3, 当前Handler路径: /p1/:var, 则var路径变量的值为: p2/p3
+                    if ((i + 1) == pieces.length && count > pieces.length) end = segs[segs.length - 1];
+                    hCtx.pathToken.put(piece.substring(1), path.substring(start, end));
+                } else { // 冒号变量片. 例: ":fName.js"
+                    hCtx.pathToken.put(piece.substring(1, index), path.substring(start, path.indexOf('.', start)));
+                }
+            } else if (piece.startsWith("~:")) {
+                hCtx.pathToken.put(piece.substring(2), path.substring(start, end));
+            }
+        }
+        return m.route;
+    }
+
+
+    /**
+     * 没有匹配的路由时: 取请求路径对应最深的前缀(子Chain)的 Filter
+     * @param path 请求路径
+     * @return Filter
+     */
+    protected FilterHandler[] filters(String path) {
+        int[] segs = segments(path);
+        Node n = root;
+        Scope[] filters = root.filters;
+        for (int i = 0; i < segs.length && n != null; i += 2) {
+            n = n.literal(path, segs[i], segs[i + 1]);
+            if (n != null && n.filters != null) filters = n.filters;
+        }
+        List<FilterHandler> ls = new ArrayList<>(filters.length);
+        for (Scope f : filters) {
+            if (f.covers(path, segs)) ls.add(f.filter);
+        }
+        return ls.toArray(new FilterHandler[0]);
+    }
+
+
+    /**
+     * 深度遍历所有匹配的节点
+     * @param node 当前节点
+     * @param path 请求路径
+     * @param segs 请求路径片区间
+     * @param i 当前路径片下标
+     * @param m 匹配结果
+     */
+    protected void search(Node node, String path, int[] segs, int i, Match m) {
+        // 请求路径多出的路径片忽略: 路由 /a/b 匹配 /a/b/c
+        for (Route r : node.routes) m.offer(r);
+        if (2 * i >= segs.length) return;
+        int start = segs[2 * i], end = segs[2 * i + 1];
+        Node n = node.literal(path, start, end);
+        if (n != null) search(n, path, segs, i + 1, m);
+        if (node.extKeys.length > 0) {
+            int dot = path.indexOf('.', start);
+            if (dot > start && dot < end) {
+                for (int j = 0; j < node.extKeys.length; j++) {
+                    String ext = node.extKeys[j];
+                    if (ext.length() == end - dot && path.regionMatches(dot, ext, 0, ext.length())) {
+                        search(node.extNodes[j], path, segs, i + 1, m);
+                    }
+                }
+            }
+        }
+        if (node.var != null) search(node.var, path, segs, i + 1, m);
+        if (node.optVar != null) search(node.optVar, path, segs, i + 1, m);
+    }
+
+
+    /**
+     * 请求路径片区间: [start0, end0, start1, end1 ...]
+     * /test/p1/p2 -> test,p1,p2; /test/ -> test,/; / -> /
+     * @param path 请求路径
+     * @return 区间
+     */
+    static int[] segments(String path) {
+        int len = path.length();
+        if (len <= 1) return new int[]{0, len};
+        int begin = path.charAt(0) == '/' ? 1 : 0;
+        boolean trailing = path.charAt(len - 1) == '/';
+        int contentEnd = trailing ? len - 1 : len;
+        int count = trailing ? 2 : 1;
+        for (int i = begin; i < contentEnd; i++) {
+            if (path.charAt(i) == '/') count++;
+        }
+        int[] segs = new int[count * 2];
+        int k = 0, start = begin;
+        for (int i = begin; i < contentEnd; i++) {
+            if (path.charAt(i) == '/') {
+                segs[k++] = start; segs[k++] = i;
+                start = i + 1;
+            }
+        }
+        segs[k++] = start; segs[k++] = contentEnd;
+        if (trailing) { segs[k++] = len - 1; segs[k] = len; }
+        return segs;
+    }
+
+
+    /**
+     * 比较字符串和请求路径的一段
+     */
+    static int compare(String key, String path, int start, int end) {
+        int l1 = key.length(), l2 = end - start;
+        for (int i = 0, lim = Math.min(l1, l2); i < lim; i++) {
+            char c1 = key.charAt(i), c2 = path.charAt(start + i);
+            if (c1 != c2) return c1 - c2;
+        }
+        return l1 - l2;
+    }
+
+
+    /**
+     * 一条完整的路由
+     */
+    protected static class Route {
+        final PathHandler     handler;
+        /**
+         * 完整路径片(包含前缀)
+         */
+        final String[]        pieces;
+        /**
+         * 路由所在 {@link Chain} 及上层的 Filter 中 限定路径匹配的
+         */
+        final FilterHandler[] filters;
+        /**
+         * 前缀的和路由自己的 {@link Bulkhead}
+         */
+        final Bulkhead[]      bulkheads;
+        /**
+         * 执行超时时间. 单位: 毫秒. 0: 不限制
+         */
+        final long            timeout;
+        /**
+         * 是否自动生成 ETag
+         */
+        final boolean         etag;
+        /**
+         * 路由的下载限速. 可为 null
+         */
+        final TokenBucket     throttle;
+        final double          order;
+        final int             seq;
+
+        Route(PathHandler handler, String[] pieces, FilterHandler[] filters, Bulkhead[] bulkheads, long timeout, boolean etag, TokenBucket throttle, int seq) {
+            this.handler = handler;
+            this.pieces = pieces;
+            this.filters = filters;
+            this.bulkheads = bulkheads;
+            this.timeout = timeout;
+            this.etag = etag;
+            this.throttle = throttle;
+            this.order = PathHandler.order(pieces);
+            this.seq = seq;
+        }
+
+        /**
+         * 是否比另一个路由先匹配
+         */
+        boolean before(Route other) {
+            return other == null || order > other.order || (order == other.order && seq < other.seq);
+        }
+    }
+
+
+    /**
+     * 带限定路径的 Filter
+     */
+    protected static class Scope {
+        final FilterHandler filter;
+        /**
+         * Filter 所在 {@link Chain} 的前缀路径片数
+         */
+        final int           depth;
+        /**
+         * 限定路径片. null: 所有路径
+         */
+        final String[][]    paths;
+
+        Scope(FilterHandler filter, int depth) {
+            this.filter = filter;
+            this.depth = depth;
+            String[] ps = filter.paths();
+            List<String[]> ls = new ArrayList<>();
+            if (ps != null) {
+                for (String p : ps) {
+                    if (p == null) continue;
+                    p = Handler.extract(p);
+                    if (p.isEmpty() || "/".equals(p)) { ls = null; break; } // 包含根路径: 所有路径
+                    ls.add(p.split("/"));
+                }
+            }
+            this.paths = ls == null || ls.isEmpty() ? null : ls.toArray(new String[0][]);
+        }
+
+        /**
+         * 是否匹配路由
+         * @param pieces 路由完整路径片
+         */
+        boolean covers(String[] pieces) {
+            if (paths == null) return true;
+            for (String[] p : paths) {
+                if (pieces.length < depth + p.length) continue;
+                int i = 0;
+                for (; i < p.length; i++) {
+                    if (!isVar(p[i]) && !p[i].equals(pieces[depth + i])) break;
+                }
+                if (i == p.length) return true;
+            }
+            return false;
+        }
+
+        /**
+         * 是否匹配请求路径
+         * @param path 请求路径
+         * @param segs 请求路径片区间
+         */
+        boolean covers(String path, int[] segs) {
+            if (paths == null) return true;
+            for (String[] p : paths) {
+                if (segs.length / 2 < depth + p.length) continue;
+                int i = 0;
+                for (; i < p.length; i++) {
+                    int k = 2 * (depth + i);
+                    if (!isVar(p[i]) && compare(p[i], path, segs[k], segs[k + 1]) != 0) break;
+                }
+                if (i == p.length) return true;
+            }
+            return false;
+        }
+
+        static boolean isVar(String piece) { return piece.startsWith(":") || piece.startsWith("~:"); }
+    }
+
+
+    /**
+     * 路由树节点. 对应一个路径片
+     */
+    protected static class Node {
+        /**
+         * 在此节点结束的路由
+         */
+        List<Route>     routes   = new ArrayList<>(1);
+        /**
+         * 子Chain 前缀对应节点的 Filter
+         */
+        Scope[]         filters;
+        /**
+         * 字面量子节点(有序, 二分查找)
+         */
+        String[]        keys     = new String[0];
+        Node[]          children = new Node[0];
+        /**
+         * :var.ext 子节点. ext 包含 .
+         */
+        String[]        extKeys  = new String[0];
+        Node[]          extNodes = new Node[0];
+        /**
+         * :var 子节点
+         */
+        Node            var;
+        /**
+         * ~:var 子节点
+         */
+        Node            optVar;
+
+        /**
+         * 取或创建 路径片对应的子节点
+         */
+        Node child(String piece) {
+            if (piece.startsWith(":")) {
+                int index = piece.indexOf('.');
+                if (index == -1) return var == null ? (var = new Node()) : var;
+                String ext = piece.substring(index);
+                for (int i = 0; i < extKeys.length; i++) {
+                    if (extKeys[i].equals(ext)) return extNodes[i];
+                }
+                extKeys = Arrays.copyOf(extKeys, extKeys.length + 1);
+                extNodes = Arrays.copyOf(extNodes, extNodes.length + 1);
+                extKeys[extKeys.length - 1] = ext;
+                return extNodes[extNodes.length - 1] = new Node();
+            }
+            if (piece.startsWith("~:")) return optVar == null ? (optVar = new Node()) : optVar;
+            int i = Arrays.binarySearch(keys, piece);
+            if (i >= 0) return children[i];
+            i = -(i + 1);
+            String[] ks = new String[keys.length + 1];
+            Node[] cs = new Node[children.length + 1];
+            System.arraycopy(keys, 0, ks, 0, i); System.arraycopy(children, 0, cs, 0, i);
+            System.arraycopy(keys, i, ks, i + 1, keys.length - i); System.arraycopy(children, i, cs, i + 1, children.length - i);
+            ks[i] = piece; cs[i] = new Node();
+            keys = ks; children = cs;
+            return cs[i];
+        }
+
+        /**
+         * 查找字面量子节点
+         */
+        Node literal(String path, int start, int end) {
+            int lo = 0, hi = keys.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = compare(keys[mid], path, start, end);
+                if (c < 0) lo = mid + 1;
+                else if (c > 0) hi = mid - 1;
+                else return children[mid];
+            }
+            return null;
+        }
+
+        /**
+         * 编译完成后不再改变
+         */
+        void freeze() {
+            routes = routes.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(routes);
+            for (Node n : children) n.freeze();
+            for (Node n : extNodes) n.freeze();
+            if (var != null) var.freeze();
+            if (optVar != null) optVar.freeze();
+        }
+    }
+
+
+    /**
+     * 一次查找的匹配结果
+     */
+    protected static class Match {
+        final HttpContext hCtx;
+        Route             route;
+        /**
+         * 路径匹配但 方法或Content-Type 不匹配时的响应状态
+         */
+        int               rejectStatus;
+        /**
+         * 不匹配的路由中优先级最高的
+         */
+        Route             rejected;
+
+        Match(HttpContext hCtx) { this.hCtx = hCtx; }
+
+        void offer(Route r) {
+            if (!r.before(route)) return;
+            int status = r.handler.reject(hCtx);
+            if (status == 0) route = r;
+            else if (r.before(rejected)) {
+                rejected = r; rejectStatus = status;
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package cn.xnatural.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static cn.xnatural.http.HttpServer.log;
+
+/**
+ * Server-Sent Events 连接: text/event-stream 响应, 每个事件一个 chunk
+ * 由 {@link HttpContext#sse()} 创建, 连接保持到任意一端关闭
+ * 心跳由 {@link HttpServer} 定时器统一发送
+ * 发送不阻塞: 事件进入连接自己的发送队列, 按顺序异步写出
+ * 队列有事件数和字节数上限(属性 sse.queue.maxMessages: 默认 1024, sse.queue.maxBytes: 默认 4M),
+ * 超出时按 {@link Overflow} 处理(属性 sse.overflow. 默认 DISCONNECT)
+ */
+public class SseEmitter {
+    /**
+     * 发送队列满时(慢消费者)的处理
+     */
+    public enum Overflow {
+        /**
+         * 丢弃最早的未发送事件
+         */
+        DROP_OLDEST,
+        /**
+         * 断开连接
+         */
+        DISCONNECT
+    }
+    /**
+     * 心跳: 注释行
+     */
+    protected static final byte[]          HEARTBEAT      = chunk(":\n\n".getBytes(StandardCharsets.UTF_8));
+    protected static final byte[]          END            = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    protected final        HttpContext     hCtx;
+    protected final        HttpAioSession  session;
+    /**
+     * 客户端重连时带的 Last-Event-ID
+     */
+    protected final        String          lastEventId;
+    protected final        AtomicBoolean   closed         = new AtomicBoolean(false);
+    protected final        Queue<Runnable> closeListeners = new ConcurrentLinkedQueue<>();
+    /**
+     * 上次写出完成时间
+     */
+    protected volatile     long            lastWrite      = System.currentTimeMillis();
+    /**
+     * 发送队列(不含正在写出的). 由 this 同步
+     */
+    protected final        Deque<ByteBuffer> queue        = new ArrayDeque<>();
+    /**
+     * 正在写出的 chunk
+     */
+    protected              ByteBuffer      writing;
+    protected              long            queuedBytes;
+    protected              long            dropped;
+    protected final        int             maxMessages;
+    protected final        long            maxBytes;
+    protected volatile     Overflow        overflow;
+    protected final CompletionHandler<Integer, ByteBuffer> writeHandler = new CompletionHandler<Integer, ByteBuffer>() {
+        @Override
+        public void completed(Integer n, ByteBuffer buf) { written(buf); }
+
+        @Override
+        public void failed(Throwable ex, ByteBuffer buf) {
+            if (!(ex instanceof ClosedChannelException) && !(ex instanceof IOException && session.closed.get())) {
+                log.error("Sse write error. url: " + hCtx.request.getRowUrl(), ex);
+            }
+            close(false);
+        }
+    };
+
+
+    SseEmitter(HttpContext hCtx) {
+        this.hCtx = hCtx;
+        this.session = hCtx.aioStream;
+        this.lastEventId = hCtx.request.getHeader("Last-Event-ID");
+        this.maxMessages = hCtx.server.getInteger("sse.queue.maxMessages", 1024);
+        this.maxBytes = hCtx.server.getLong("sse.queue.maxBytes", 1024 * 1024 * 4L);
+        this.overflow = Overflow.valueOf(hCtx.server.getStr("sse.overflow", Overflow.DISCONNECT.name()).toUpperCase());
+    }
+
+
+    /**
+     * 发送事件
+     * @param data 数据
+     */
+    public SseEmitter send(String data) { return send(null, null, data); }
+
+
+    /**
+     * 发送事件
+     * @param event 事件名
+     * @param data 数据
+     */
+    public SseEmitter send(String event, String data) { return send(null, event, data); }
+
+
+    /**
+     * 发送事件
+     * @param id 事件id. 客户端重连时作为 Last-Event-ID
+     * @param event 事件名
+     * @param data 数据
+     */
+    public SseEmitter send(String id, String event, String data) {
+        write(encode(id, event, data));
+        return this;
+    }
+
+
+    /**
+     * 已编码的事件(chunk)加入发送队列, 没有正在写出的时开始写出
+     * 同一份字节可加入多个连接的队列(只读)
+     * @param frame {@link #encode(String, String, String)}
+     * @return false: 已关闭或被断开
+     */
+    protected boolean write(byte[] frame) {
+        ByteBuffer buf = ByteBuffer.wrap(frame), next = null;
+        boolean disconnect = false;
+        synchronized (this) {
+            if (closed.get()) return false;
+            while (!queue.isEmpty() && (queue.size() >= maxMessages || queuedBytes + buf.remaining() > maxBytes)) {
+                if (overflow == Overflow.DISCONNECT) { disconnect = true; break; }
+                queuedBytes -= queue.pollFirst().remaining(); dropped++;
+            }
+            if (!disconnect) {
+                if (writing == null) next = writing = buf;
+                else {
+                    queue.addLast(buf); queuedBytes += buf.remaining();
+                }
+            }
+        }
+        if (disconnect) {
+            log.warn("Sse slow consumer, disconnect: {}. queued: {}, {} bytes", session.getRemoteAddress(), queue.size(), queuedBytes);
+            close(false);
+            return false;
+        }
+        if (next != null) write(next);
+        return true;
+    }
+
+
+    protected void write(ByteBuffer buf) {
+        try {
+            session.channel.write(buf, buf, writeHandler);
+        } catch (Exception ex) {
+            writeHandler.failed(ex, buf);
+        }
+    }
+
+
+    /**
+     * 一次写出完成: 继续写剩余部分或下一个. 已关闭且写完时关闭连接
+     */
+    protected void written(ByteBuffer buf) {
+        session.lastUsed = lastWrite = System.currentTimeMillis();
+        if (buf.hasRemaining()) { // 只写出一部分
+            write(buf); return;
+        }
+        ByteBuffer next;
+        boolean close;
+        synchronized (this) {
+            next = writing = queue.pollFirst();
+            if (next != null) queuedBytes -= next.remaining();
+            close = next == null && closed.get();
+        }
+        if (next != null) write(next);
+        else if (close) session.close();
+    }
+
+
+    /**
+     * 空闲时发送心跳, 保持连接并检测断开
+     * 有未写完的数据(连接忙 或 客户端不读)时不发送
+     * @param interval 心跳间隔. 单位: 毫秒
+     */
+    void heartbeat(long interval) {
+        synchronized (this) {
+            if (writing != null) return;
+        }
+        if (System.currentTimeMillis() - lastWrite >= interval) write(HEARTBEAT);
+    }
+
+
+    /**
+     * 结束事件流: 队列中的事件写完后关闭连接
+     */
+    public void close() { close(true); }
+
+
+    /**
+     * 关闭
+     * @param flush true: 写完队列和结束 chunk 后关闭连接; false: 丢弃队列, 立即关闭
+     */
+    protected void close(boolean flush) {
+        if (!closed.compareAndSet(false, true)) return;
+        ByteBuffer next = null;
+        boolean now = false;
+        synchronized (this) {
+            if (!flush || session.closed.get()) {
+                queue.clear(); queuedBytes = 0;
+                now = true;
+            } else {
+                ByteBuffer end = ByteBuffer.wrap(END);
+                if (writing == null) next = writing = end;
+                else {
+                    queue.addLast(end); queuedBytes += END.length;
+                }
+            }
+        }
+        if (now) session.close();
+        else if (next != null) write(next);
+        hCtx.server.sseEmitters.remove(this);
+        fireClose();
+    }
+
+
+    /**
+     * 执行关闭监听, 每个只执行一次
+     */
+    protected void fireClose() {
+        for (Runnable fn; (fn = closeListeners.poll()) != null; ) {
+            try {
+                fn.run();
+            } catch (Exception ex) {
+                log.error("Sse close listener error", ex);
+            }
+        }
+    }
+
+
+    /**
+     * 添加关闭监听
+     * @param fn 关闭时执行
+     */
+    public SseEmitter onClose(Runnable fn) {
+        closeListeners.add(fn);
+        if (closed.get()) fireClose();
+        return this;
+    }
+
+
+    public boolean isClosed() { return closed.get(); }
+
+
+    /**
+     * 设置此连接的慢消费者处理
+     * @param overflow {@link Overflow}
+     */
+    public SseEmitter overflow(Overflow overflow) {
+        if (overflow == null) throw new NullPointerException("overflow must not be null");
+        this.overflow = overflow;
+        return this;
+    }
+
+
+    /**
+     * @return 等待发送的事件数(不含正在写出的)
+     */
+    public synchronized int getQueuedMessages() { return queue.size(); }
+
+
+    /**
+     * @return 等待发送的字节数(不含正在写出的)
+     */
+    public synchronized long getQueuedBytes() { return queuedBytes; }
+
+
+    /**
+     * @return 队列满时丢弃的事件数
+     */
+    public synchronized long getDropped() { return dropped; }
+
+
+    /**
+     * @return 客户端重连时带的 Last-Event-ID, 首次连接为 null
+     */
+    public String getLastEventId() { return lastEventId; }
+
+
+    public HttpContext getContext() { return hCtx; }
+
+
+    /**
+     * 编码事件(UTF-8), 并加上 chunk 头尾
+     * 多行数据分多个 data 行
+     * @param id 事件id. 可为 null
+     * @param event 事件名. 可为 null
+     * @param data 数据
+     * @return 可直接写出到每个连接的字节
+     */
+    static byte[] encode(String id, String event, String data) {
+        StringBuilder sb = new StringBuilder();
+        if (id != null) sb.append("id: ").append(oneLine(id)).append('\n');
+        if (event != null) sb.append("event: ").append(oneLine(event)).append('\n');
+        if (data != null) {
+            int start = 0;
+            for (int i = 0; i < data.length(); i++) {
+                char c = data.charAt(i);
+                if (c == '\n' || c == '\r') {
+                    sb.append("data: ").append(data, start, i).append('\n');
+                    if (c == '\r' && i + 1 < data.length() && data.charAt(i + 1) == '\n') i++;
+                    start = i + 1;
+                }
+            }
+            sb.append("data: ").append(data, start, data.length()).append('\n');
+        }
+        sb.append('\n');
+        return chunk(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * id, event 不能换行
+     */
+    protected static String oneLine(String s) {
+        return s.indexOf('\n') < 0 && s.indexOf('\r') < 0 ? s : s.replace("\r", "").replace("\n", "");
+    }
+
+
+    /**
+     * 加上 chunk 头尾: 长度(16进制)\r\n 数据 \r\n
+     */
+    static byte[] chunk(byte[] bs) {
+        byte[] head = (Integer.toHexString(bs.length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] frame = new byte[head.length + bs.length + 2];
+        System.arraycopy(head, 0, frame, 0, head.length);
+        System.arraycopy(bs, 0, frame, head.length, bs.length);
+        frame[frame.length - 2] = '\r'; frame[frame.length - 1] = '\n';
+        return frame;
+    }
+}
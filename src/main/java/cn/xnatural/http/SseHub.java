@@ -0,0 +1,139 @@
+package cn.xnatural.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Server-Sent Events 广播: 事件只编码一次, 同一份字节写给所有订阅者
+ * 最近的事件保存在环形缓冲中, 客户端带 Last-Event-ID 重连时补发之后的事件
+ * 发送只放入每个订阅者的发送队列 {@link SseEmitter}, 慢的订阅者不阻塞广播
+ * <pre>
+ *     SseHub hub = new SseHub(100);
+ *     {@literal @}Path(path = "events") void events(SseEmitter emitter) { hub.subscribe(emitter); }
+ *     hub.publish("msg", "hello");
+ * </pre>
+ */
+public class SseHub {
+    /**
+     * 订阅者
+     */
+    protected final Set<SseEmitter> subscribers = ConcurrentHashMap.newKeySet();
+    /**
+     * 补发缓冲: 事件id 和 编码后的事件
+     */
+    protected final long[]          ids;
+    protected final byte[][]        frames;
+    /**
+     * 最新事件id. 从 1 开始递增
+     */
+    protected       long            seq;
+    /**
+     * 待执行的 广播/订阅: 按事件id顺序在锁外执行, 同一时间只有一个线程执行
+     */
+    protected final Queue<Runnable> pending     = new ConcurrentLinkedQueue<>();
+    protected final AtomicBoolean   fanning     = new AtomicBoolean(false);
+
+
+    /**
+     * 创建
+     * @param replaySize 保存最近多少个事件用于重连补发. 0: 不补发
+     */
+    public SseHub(int replaySize) {
+        this.ids = new long[Math.max(0, replaySize)];
+        this.frames = new byte[ids.length][];
+    }
+
+
+    /**
+     * 订阅: 补发 Last-Event-ID 之后的事件, 之后接收新事件. 连接关闭时自动取消订阅
+     * @param emitter {@link SseEmitter}
+     */
+    public SseHub subscribe(SseEmitter emitter) {
+        long lastId = -1;
+        if (emitter.getLastEventId() != null) {
+            try {
+                lastId = Long.parseLong(emitter.getLastEventId().trim());
+            } catch (NumberFormatException ex) {/** 不是本 hub 的事件id **/}
+        }
+        List<byte[]> replay = new ArrayList<>();
+        synchronized (this) { // 与 publish 排序: 补发和新事件不重复, 不遗漏
+            if (lastId >= 0 && frames.length > 0) {
+                for (long id = Math.max(lastId + 1, seq - frames.length + 1); id <= seq; id++) {
+                    int i = (int) (id % frames.length);
+                    if (ids[i] == id) replay.add(frames[i]);
+                }
+            }
+            pending.add(() -> {
+                for (byte[] frame : replay) {
+                    if (!emitter.write(frame)) return;
+                }
+                subscribers.add(emitter);
+            });
+        }
+        fanOut();
+        emitter.onClose(() -> subscribers.remove(emitter));
+        return this;
+    }
+
+
+    /**
+     * 取消订阅
+     * @param emitter {@link SseEmitter}
+     */
+    public SseHub unsubscribe(SseEmitter emitter) {
+        subscribers.remove(emitter);
+        return this;
+    }
+
+
+    /**
+     * 广播事件
+     * 放入每个订阅者的发送队列, 不等待写出
+     * @param event 事件名. 可为 null
+     * @param data 数据
+     * @return 事件id
+     */
+    public long publish(String event, String data) {
+        long id;
+        synchronized (this) {
+            id = ++seq;
+            byte[] frame = SseEmitter.encode(String.valueOf(id), event, data);
+            if (frames.length > 0) {
+                int i = (int) (id % frames.length);
+                ids[i] = id; frames[i] = frame;
+            }
+            pending.add(() -> {
+                for (SseEmitter emitter : subscribers) {
+                    if (!emitter.write(frame)) subscribers.remove(emitter);
+                }
+            });
+        }
+        fanOut();
+        return id;
+    }
+
+
+    /**
+     * 按顺序执行待执行的 广播/订阅. 已有线程在执行时由它执行
+     */
+    protected void fanOut() {
+        while (!pending.isEmpty() && fanning.compareAndSet(false, true)) {
+            try {
+                for (Runnable fn; (fn = pending.poll()) != null; ) fn.run();
+            } finally {
+                fanning.set(false);
+            }
+        }
+    }
+
+
+    /**
+     * @return 当前订阅数
+     */
+    public int size() { return subscribers.size(); }
+}
@@ -0,0 +1,156 @@
+package cn.xnatural.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 静态文件内容缓存: 按总字节数限制的 LRU
+ * 文件内容放在直接内存, 所有连接共享只读 {@link ByteBuffer}
+ * 文件修改时间或长度变化时重新加载
+ */
+class StaticCache {
+    /**
+     * 缓存总字节数上限
+     */
+    protected final long                     maxSize;
+    /**
+     * 单个文件缓存上限, 超过不缓存
+     */
+    protected final long                     maxFileSize;
+    /**
+     * 文件绝对路径 -> {@link Entry}. 按访问顺序排列
+     */
+    protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    protected       long                     size;
+
+
+    StaticCache(long maxSize, long maxFileSize) {
+        this.maxSize = maxSize;
+        this.maxFileSize = Math.min(maxFileSize, maxSize);
+    }
+
+
+    /**
+     * 取文件缓存, 不存在或已过期时加载
+     * @param file 文件
+     * @return 文件太大或不缓存时返回 null
+     */
+    Entry get(File file) throws IOException {
+        long length = file.length(), lastModified = file.lastModified();
+        if (maxSize <= 0 || length > maxFileSize) return null;
+        String key = file.getAbsolutePath();
+        Entry entry;
+        synchronized (this) { entry = entries.get(key); }
+        if (entry != null && entry.lastModified == lastModified && entry.length == length) return entry;
+
+        ByteBuffer data = ByteBuffer.allocateDirect((int) length);
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (data.hasRemaining() && fc.read(data) != -1);
+        }
+        data.flip();
+        entry = new Entry(data.asReadOnlyBuffer(), data.remaining(), lastModified);
+        synchronized (this) {
+            Entry old = entries.put(key, entry);
+            if (old != null) size -= old.size();
+            size += entry.size();
+            evict();
+        }
+        return entry;
+    }
+
+
+    /**
+     * gzip 压缩的内容: 有预压缩的 .gz 文件则用, 否则压缩一次后缓存
+     * @param file 原文件
+     * @param entry 原文件缓存
+     */
+    ByteBuffer gzip(File file, Entry entry) throws IOException {
+        ByteBuffer gz = entry.gzip;
+        if (gz != null) return gz;
+        File gzFile = new File(file.getPath() + ".gz");
+        byte[] bs;
+        if (gzFile.isFile() && gzFile.lastModified() >= file.lastModified() && gzFile.length() <= maxFileSize) {
+            bs = Files.readAllBytes(gzFile.toPath());
+        } else {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream((int) Math.max(64, entry.length / 3));
+            try (GZIPOutputStream os = new GZIPOutputStream(bos, 1024 * 8)) {
+                ByteBuffer src = entry.data.duplicate();
+                byte[] buf = new byte[1024 * 8];
+                while (src.hasRemaining()) {
+                    int n = Math.min(buf.length, src.remaining());
+                    src.get(buf, 0, n);
+                    os.write(buf, 0, n);
+                }
+            }
+            bs = bos.toByteArray();
+        }
+        gz = ByteBuffer.allocateDirect(bs.length);
+        gz.put(bs).flip();
+        gz = gz.asReadOnlyBuffer();
+        synchronized (this) {
+            if (entry.gzip == null) {
+                entry.gzip = gz;
+                if (entries.get(file.getAbsolutePath()) == entry) {
+                    size += bs.length;
+                    evict();
+                }
+            } else gz = entry.gzip;
+        }
+        return gz;
+    }
+
+
+    /**
+     * 超过总大小时删除最久未访问的
+     */
+    protected void evict() {
+        for (Iterator<Entry> it = entries.values().iterator(); size > maxSize && it.hasNext(); ) {
+            size -= it.next().size();
+            it.remove();
+        }
+    }
+
+
+    /**
+     * 强 ETag: 长度和修改时间
+     * @param length 文件长度
+     * @param lastModified 文件修改时间
+     * @param encoding 内容编码(gzip). 不同编码的内容 ETag 不同
+     */
+    static String etag(long length, long lastModified, String encoding) {
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + (encoding == null ? "" : "-" + encoding) + "\"";
+    }
+
+
+    /**
+     * 一个文件的缓存
+     */
+    static class Entry {
+        /**
+         * 文件内容. 使用时 duplicate
+         */
+        final    ByteBuffer data;
+        final    long       length;
+        final    long       lastModified;
+        volatile ByteBuffer gzip;
+
+        Entry(ByteBuffer data, long length, long lastModified) {
+            this.data = data;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        long size() {
+            ByteBuffer gz = gzip;
+            return length + (gz == null ? 0 : gz.capacity());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package cn.xnatural.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static cn.xnatural.http.HttpServer.log;
+
+/**
+ * 限速发送响应体: 每块发送前从所有 {@link TokenBucket} 取令牌
+ * 需要等待时由定时器延迟发送, 写出用异步回调, 等待期间不占用线程
+ * 响应头已发送, 发送完后 {@link HttpContext#determineClose()}
+ */
+class ThrottledSender implements CompletionHandler<Integer, ByteBuffer> {
+    protected final HttpContext   hCtx;
+    protected final TokenBucket[] buckets;
+    /**
+     * 文件区间的数据源. 可为 null
+     */
+    protected final FileChannel   fc;
+    protected final List<Segment> segments = new ArrayList<>();
+    protected       int           index;
+    /**
+     * 文件读取缓冲
+     */
+    protected       ByteBuffer    buf;
+    /**
+     * 块大小: 不超过最慢的桶 1/10 秒的量, 保持发送平滑
+     */
+    protected final int           maxChunk;
+
+
+    ThrottledSender(HttpContext hCtx, TokenBucket[] buckets, FileChannel fc) {
+        this.hCtx = hCtx;
+        this.buckets = buckets;
+        this.fc = fc;
+        long rate = Long.MAX_VALUE;
+        for (TokenBucket b : buckets) rate = Math.min(rate, b.rate);
+        this.maxChunk = (int) Math.max(1024 * 4, Math.min(rate / 10, Integer.MAX_VALUE));
+    }
+
+
+    /**
+     * 添加内存数据段
+     */
+    ThrottledSender add(ByteBuffer data) {
+        segments.add(new Segment(data, 0, data.remaining()));
+        return this;
+    }
+
+
+    /**
+     * 添加文件区间
+     */
+    ThrottledSender add(long position, long length) {
+        segments.add(new Segment(null, position, length));
+        return this;
+    }
+
+
+    /**
+     * 开始发送
+     */
+    void start() {
+        hCtx.sending = true;
+        next();
+    }
+
+
+    /**
+     * 取下一块, 取令牌, 立即或延迟写出
+     */
+    protected void next() {
+        try {
+            while (index < segments.size() && segments.get(index).remaining == 0) index++;
+            if (index >= segments.size()) { finish(); return; }
+            if (hCtx.aioStream.closed.get()) throw new ClosedChannelException();
+            Segment seg = segments.get(index);
+            int size = (int) Math.min(seg.remaining, Math.min(maxChunk, hCtx.server.adaptiveChunkSize(hCtx)));
+            ByteBuffer chunk;
+            if (seg.data != null) {
+                chunk = seg.data.duplicate();
+                chunk.limit(chunk.position() + size);
+                seg.data.position(chunk.limit());
+            } else {
+                if (buf == null || buf.capacity() < size) buf = ByteBuffer.allocateDirect(size);
+                buf.clear().limit(size);
+                while (buf.hasRemaining()) {
+                    int n = fc.read(buf, seg.position);
+                    if (n < 0) throw new EOFException("File truncated while sending");
+                    seg.position += n;
+                }
+                buf.flip();
+                chunk = buf;
+            }
+            seg.remaining -= size;
+            long wait = 0;
+            for (TokenBucket b : buckets) wait = Math.max(wait, b.take(size));
+            if (wait > 0) hCtx.server._timer.get().schedule(() -> write(chunk), wait, TimeUnit.NANOSECONDS);
+            else write(chunk);
+        } catch (Exception ex) {
+            fail(ex);
+        }
+    }
+
+
+    protected void write(ByteBuffer chunk) {
+        try {
+            hCtx.aioStream.lastUsed = System.currentTimeMillis();
+            hCtx.aioStream.channel.write(chunk, chunk, this);
+        } catch (Exception ex) {
+            fail(ex);
+        }
+    }
+
+
+    @Override
+    public void completed(Integer n, ByteBuffer chunk) {
+        if (chunk.hasRemaining()) write(chunk); // 只写出一部分
+        else next();
+    }
+
+
+    @Override
+    public void failed(Throwable ex, ByteBuffer chunk) { fail(ex); }
+
+
+    protected void finish() {
+        closeFile();
+        hCtx.sending = false;
+        hCtx.determineClose();
+    }
+
+
+    protected void fail(Throwable ex) {
+        closeFile();
+        hCtx.sending = false;
+        if (!(ex instanceof ClosedChannelException) && !(ex instanceof IOException && hCtx.aioStream.closed.get())) {
+            log.error("Throttled send error. url: " + hCtx.request.getRowUrl(), ex);
+        }
+        hCtx.close();
+    }
+
+
+    protected void closeFile() {
+        if (fc == null) return;
+        try { fc.close(); } catch (IOException e) {/** ignore **/}
+    }
+
+
+    /**
+     * 数据段: 内存数据 或 文件区间
+     */
+    protected static class Segment {
+        final ByteBuffer data;
+        long             position;
+        long             remaining;
+
+        Segment(ByteBuffer data, long position, long remaining) {
+            this.data = data;
+            this.position = position;
+            this.remaining = remaining;
+        }
+    }
+}
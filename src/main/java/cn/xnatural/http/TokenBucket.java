@@ -0,0 +1,66 @@
+package cn.xnatural.http;
+
+/**
+ * 令牌桶: 限制发送速度(字节/秒)
+ * 令牌不足时预支, 返回需要等待的时间, 由调用方延迟发送(不占用线程等待)
+ */
+class TokenBucket {
+    protected final String name;
+    /**
+     * 速度. 单位: 字节/秒
+     */
+    protected final long   rate;
+    /**
+     * 桶容量: 允许的突发字节数
+     */
+    protected final long   capacity;
+    protected       double tokens;
+    protected       long   lastRefill = System.nanoTime();
+
+
+    TokenBucket(String name, long rate, long capacity) {
+        if (rate <= 0) throw new IllegalArgumentException("rate must > 0");
+        this.name = name;
+        this.rate = rate;
+        this.capacity = Math.max(1, capacity);
+        this.tokens = this.capacity;
+    }
+
+
+    /**
+     * 取令牌
+     * @param n 字节数
+     * @return 需要等待的时间(纳秒). 0: 可立即发送
+     */
+    synchronized long take(long n) {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+        tokens -= n;
+        return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+    }
+
+
+    /**
+     * 是否已空闲(桶已满)一段时间
+     * @param idleNanos 空闲时间. 单位: 纳秒
+     */
+    synchronized boolean idle(long idleNanos) {
+        return System.nanoTime() - lastRefill > idleNanos && tokens + (System.nanoTime() - lastRefill) * rate / 1e9 >= capacity;
+    }
+
+
+    public String getName() { return name; }
+
+
+    /**
+     * @return 速度. 单位: 字节/秒
+     */
+    public long getRate() { return rate; }
+
+
+    @Override
+    public String toString() {
+        return "TokenBucket[" + name + ", rate: " + rate + "B/s]";
+    }
+}
@@ -1,27 +1,260 @@
 package cn.xnatural.http;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cn.xnatural.http.HttpServer.log;
 
 /**
  * web socket 连接实例
+ * 发送不阻塞: 帧进入连接自己的发送队列, 按顺序异步写出
+ * 队列有消息数和字节数上限(属性 ws.queue.maxMessages: 默认 1024, ws.queue.maxBytes: 默认 4M),
+ * 超出时按 {@link Overflow} 处理(属性 ws.overflow. 默认 DISCONNECT)
+ * 接收的消息按顺序在线程池中回调 {@link WsListener}, 不占用 IO 线程;
+ * 待处理消息超出上限(属性 ws.inbound.maxMessages: 默认 1024, ws.inbound.maxBytes: 默认 16M)时暂停读取, 处理到一半以下时恢复
  */
 public class WebSocket {
+    /**
+     * 发送队列满时(慢消费者)的处理
+     */
+    public enum Overflow {
+        /**
+         * 丢弃最早的未发送消息
+         */
+        DROP_OLDEST,
+        /**
+         * 带 key 的消息替换队列中同 key 未发送的消息(只保留最新), 仍超出时丢弃最早的
+         */
+        COALESCE,
+        /**
+         * 断开连接
+         */
+        DISCONNECT
+    }
     // 关联的Http aio 会话
     protected    HttpAioSession session;
     // 消息监听
     protected    WsListener     listener;
     public final WsDecoder      decoder = new WsDecoder(this);
+    // 关闭监听 {@link #onClose(Runnable)}
+    protected final Queue<Runnable> closeListeners = new ConcurrentLinkedQueue<>();
+    // 握手是否完成(开始接收帧) {@link HttpAioSession#resume()}
+    protected volatile boolean  opened;
+    protected final AtomicInteger handshake = new AtomicInteger();
+    // 发送队列(不含正在写出的帧). 由 this 同步
+    protected final Deque<Frame> queue = new ArrayDeque<>();
+    // 正在写出的帧
+    protected Frame             writing;
+    protected long              queuedBytes;
+    protected long              dropped;
+    protected long              coalesced;
+    // 已发送 close 帧, 写完后关闭
+    protected boolean           closing;
+    protected final int         maxMessages;
+    protected final long        maxBytes;
+    protected volatile Overflow overflow;
+    // 握手时协商的 permessage-deflate. null: 不压缩
+    protected volatile WsDeflate deflate;
+    protected final HttpServer  server;
+    // 待回调的接收消息. 由 inbound 同步
+    protected final Deque<WsDecoder.Message> inbound = new ArrayDeque<>();
+    protected long              inboundBytes;
+    // 是否有线程正在回调
+    protected boolean           dispatching;
+    // 是否因待处理消息过多暂停了读取
+    protected boolean           readParked;
+    protected final int         maxInboundMessages;
+    protected final long        maxInboundBytes;
+    protected final CompletionHandler<Integer, Frame> writeHandler = new CompletionHandler<Integer, Frame>() {
+        @Override
+        public void completed(Integer n, Frame frame) { written(frame); }
 
+        @Override
+        public void failed(Throwable ex, Frame frame) {
+            if (!(ex instanceof ClosedChannelException)) log.error("WebSocket write error. " + frame, ex);
+            close();
+        }
+    };
 
-    public WebSocket(HttpAioSession session) { this.session = session; }
+
+    public WebSocket(HttpAioSession session) {
+        this.session = session;
+        this.server = session.server;
+        this.maxInboundMessages = session.server.getInteger("ws.inbound.maxMessages", 1024);
+        this.maxInboundBytes = session.server.getLong("ws.inbound.maxBytes", 1024 * 1024 * 16L);
+        this.maxMessages = session.server.getInteger("ws.queue.maxMessages", 1024);
+        this.maxBytes = session.server.getLong("ws.queue.maxBytes", 1024 * 1024 * 4L);
+        this.overflow = Overflow.valueOf(session.server.getStr("ws.overflow", Overflow.DISCONNECT.name()).toUpperCase());
+    }
 
 
     /**
      * 发送消息
-     * synchronized 避免 WritePendingException
      * @param msg 消息
      */
-    public synchronized void send(String msg) { session.write(encode(msg)); }
+    public void send(String msg) { send(null, msg); }
+
+
+    /**
+     * 发送可合并的消息: {@link Overflow#COALESCE} 时替换队列中同 key 未发送的消息
+     * @param key 例: 行情代码
+     * @param msg 消息
+     */
+    public void send(String key, String msg) {
+        HttpAioSession se = session;
+        if (se != null) send(msg.getBytes(se.server.getCharset()), (byte) 1, key);
+    }
+
+
+    /**
+     * 发送二进制消息
+     * @param msg 消息
+     */
+    public void send(byte[] msg) { send(msg, (byte) 2, null); }
+
+
+    /**
+     * 编码(协商了 permessage-deflate 时压缩)并加入发送队列
+     * @param body 消息
+     * @param opCode 1: 文本, 2: 二进制
+     * @param key 可合并的 key. 可为 null
+     * @return false: 已关闭或被丢弃
+     */
+    protected boolean send(byte[] body, byte opCode, String key) {
+        WsDeflate d = deflate;
+        if (d == null || body.length < d.minSize) return enqueue(new Frame(encode(body, opCode), key, false));
+        if (d.serverNoContextTakeover) return enqueue(new Frame(encode(d.deflate(body), opCode, true), key, false));
+        synchronized (d) { // 保留上下文: 压缩顺序即发送顺序
+            return enqueue(new Frame(encode(d.deflate(body), opCode, true), key, false));
+        }
+    }
+
+
+    /**
+     * 发送已编码的帧(广播等)
+     * @param frame 帧
+     * @param key 可合并的 key. 可为 null
+     * @return false: 已关闭或被丢弃
+     */
+    boolean write(ByteBuffer frame, String key) { return enqueue(new Frame(frame, key, false)); }
+
+
+    /**
+     * 发送控制帧(pong, close). 不受队列上限限制
+     */
+    void control(ByteBuffer frame) { enqueue(new Frame(frame, null, true)); }
+
+
+    /**
+     * 帧加入发送队列, 没有正在写出的帧时开始写出
+     * @return false: 已关闭或被丢弃
+     */
+    protected boolean enqueue(Frame frame) {
+        HttpAioSession se = session;
+        if (se == null) return false;
+        boolean disconnect = false;
+        Frame next = null;
+        WsDeflate d = deflate;
+        // 保留压缩上下文时丢弃任何帧都会使客户端解压出错, 只能断开
+        Overflow overflow = d != null && !d.serverNoContextTakeover ? Overflow.DISCONNECT : this.overflow;
+        synchronized (this) {
+            if (closing) return false;
+            if (!frame.control) {
+                if (frame.key != null && overflow == Overflow.COALESCE && !queue.isEmpty()) {
+                    for (Iterator<Frame> it = queue.iterator(); it.hasNext(); ) {
+                        Frame f = it.next();
+                        if (frame.key.equals(f.key)) {
+                            it.remove(); queuedBytes -= f.buf.remaining(); coalesced++;
+                            break;
+                        }
+                    }
+                }
+                while (!queue.isEmpty() && (queue.size() >= maxMessages || queuedBytes + frame.buf.remaining() > maxBytes)) {
+                    if (overflow == Overflow.DISCONNECT) { disconnect = true; break; }
+                    Frame f = dropOldest();
+                    if (f == null) break;
+                    queuedBytes -= f.buf.remaining(); dropped++;
+                }
+            }
+            if (!disconnect) {
+                if (writing == null) next = writing = frame;
+                else {
+                    queue.addLast(frame); queuedBytes += frame.buf.remaining();
+                }
+            }
+        }
+        if (disconnect) {
+            log.warn("WebSocket slow consumer, disconnect: {}. queued: {}, {} bytes", se.getRemoteAddress(), queue.size(), queuedBytes);
+            close();
+            return false;
+        }
+        if (next != null) write(se, next);
+        return true;
+    }
+
+
+    /**
+     * 移除最早的数据帧(控制帧不丢弃)
+     */
+    protected Frame dropOldest() {
+        for (Iterator<Frame> it = queue.iterator(); it.hasNext(); ) {
+            Frame f = it.next();
+            if (!f.control) { it.remove(); return f; }
+        }
+        return null;
+    }
+
+
+    protected void write(HttpAioSession se, Frame frame) {
+        try {
+            se.channel.write(frame.buf, frame, writeHandler);
+        } catch (Exception ex) {
+            writeHandler.failed(ex, frame);
+        }
+    }
+
+
+    /**
+     * 一次写出完成: 继续写剩余部分或下一帧
+     */
+    protected void written(Frame frame) {
+        HttpAioSession se = session;
+        if (se == null) return;
+        se.lastUsed = System.currentTimeMillis();
+        if (frame.buf.hasRemaining()) { // 只写出一部分
+            write(se, frame); return;
+        }
+        Frame next;
+        boolean close;
+        synchronized (this) {
+            next = writing = queue.pollFirst();
+            if (next != null) queuedBytes -= next.buf.remaining();
+            close = next == null && closing;
+        }
+        if (next != null) write(se, next);
+        else if (close) close();
+    }
+
+
+    /**
+     * 发送队列写完后关闭(已发送 close 帧)
+     */
+    void closeAfterFlush() {
+        boolean now;
+        synchronized (this) {
+            closing = true;
+            now = writing == null;
+        }
+        if (now) close();
+    }
 
 
     /**
@@ -29,29 +262,177 @@ public class WebSocket {
      */
     public void close() {
         // session 为大内存对象, 主动回收
-        HttpAioSession se = session; session = null; se.close();
+        HttpAioSession se = session; session = null;
+        if (se == null) return;
+        se.close();
+        synchronized (this) {
+            queue.clear(); queuedBytes = 0;
+        }
+        if (deflate != null) deflate.end();
+        synchronized (inbound) { // 未回调的消息丢弃
+            for (WsDecoder.Message msg; (msg = inbound.poll()) != null; ) msg.release();
+            inboundBytes = 0;
+        }
         if (listener != null) listener.onClose(this);
+        fireClose();
     }
 
 
     /**
-     * 设置消息监听
-     * @param listener
-     * @return
+     * 接收到完整消息: 加入待回调队列, 没有线程在回调时提交到线程池
+     * 同一连接的消息串行回调, 保持顺序
+     * @param msg 消息. 回调后放回池中
      */
-    public WebSocket listen(WsListener listener) { this.listener = listener; return this; }
+    void dispatch(WsDecoder.Message msg) {
+        if (listener == null) { msg.release(); return; }
+        boolean start;
+        synchronized (inbound) {
+            inbound.addLast(msg);
+            inboundBytes += msg.length;
+            start = !dispatching;
+            dispatching = true;
+        }
+        if (start) submit();
+    }
+
+
+    protected void submit() {
+        try {
+            server.exec.execute(this::drain);
+        } catch (RejectedExecutionException ex) { // 线程池已关闭
+            synchronized (inbound) { dispatching = false; }
+        }
+    }
 
 
     /**
-     * {@link #encode(byte[], byte)}
-     * @param msg 消息
-     * @return
+     * 按顺序回调待处理消息. 每次最多处理一批, 再重新提交, 避免一个连接长时间占用线程
+     */
+    protected void drain() {
+        for (int i = 0; ; i++) {
+            WsDecoder.Message msg;
+            boolean resume = false;
+            synchronized (inbound) {
+                if (i == 64 && !inbound.isEmpty()) break;
+                msg = inbound.pollFirst();
+                if (msg == null) {
+                    dispatching = false;
+                    return;
+                }
+                inboundBytes -= msg.length;
+                if (readParked && inbound.size() <= maxInboundMessages / 2 && inboundBytes <= maxInboundBytes / 2) {
+                    readParked = false; resume = true;
+                }
+            }
+            if (resume) { // 恢复读取
+                HttpAioSession se = session;
+                if (se != null) se.read();
+            }
+            try {
+                WsListener l = listener;
+                if (l != null && session != null) {
+                    if (msg.opCode == 1) l.onText(msg.text(server));
+                    else l.onBinary(msg.bytes());
+                }
+            } catch (Throwable ex) {
+                log.error("WebSocket listener error. from: " + (session == null ? "" : session.getRemoteAddress()), ex);
+            } finally {
+                msg.release();
+            }
+        }
+        submit();
+    }
+
+
+    /**
+     * 待处理消息超出上限时暂停读取(不再发起读), 由 {@link #drain()} 恢复
+     * @return true: 已暂停
+     */
+    boolean parkRead() {
+        synchronized (inbound) {
+            if (inbound.size() < maxInboundMessages && inboundBytes < maxInboundBytes) return false;
+            readParked = true;
+            return true;
+        }
+    }
+
+
+    /**
+     * @return 待回调的接收消息数
      */
-    protected ByteBuffer encode(String msg) {
-        return encode(msg.getBytes(session.server.getCharset()), (byte) 1);
+    public int getInboundMessages() {
+        synchronized (inbound) { return inbound.size(); }
     }
 
 
+    /**
+     * 执行关闭监听, 每个只执行一次
+     */
+    protected void fireClose() {
+        for (Runnable fn; (fn = closeListeners.poll()) != null; ) {
+            try {
+                fn.run();
+            } catch (Exception ex) {
+                log.error("WebSocket close listener error", ex);
+            }
+        }
+    }
+
+
+    /**
+     * 添加关闭监听(可多个)
+     * @param fn 关闭时执行
+     */
+    public WebSocket onClose(Runnable fn) {
+        closeListeners.add(fn);
+        if (session == null) fireClose();
+        return this;
+    }
+
+
+    /**
+     * 设置此连接的慢消费者处理
+     * @param overflow {@link Overflow}
+     */
+    public WebSocket overflow(Overflow overflow) {
+        if (overflow == null) throw new NullPointerException("overflow must not be null");
+        this.overflow = overflow;
+        return this;
+    }
+
+
+    /**
+     * @return 等待发送的消息数(不含正在写出的)
+     */
+    public synchronized int getQueuedMessages() { return queue.size(); }
+
+
+    /**
+     * @return 等待发送的字节数(不含正在写出的)
+     */
+    public synchronized long getQueuedBytes() { return queuedBytes; }
+
+
+    /**
+     * @return 队列满时丢弃的消息数
+     */
+    public synchronized long getDropped() { return dropped; }
+
+
+    /**
+     * @return 被同 key 新消息替换的消息数
+     */
+    public synchronized long getCoalesced() { return coalesced; }
+
+
+    /**
+     * 设置消息监听
+     * @param listener
+     * @return
+     */
+    public WebSocket listen(WsListener listener) { this.listener = listener; return this; }
+
+
     /**
      * 编码 响应 文档消息
      * 编码参考: tio WsServerEncoder
@@ -59,9 +440,18 @@ public class WebSocket {
      * @param opCode
      * @return
      */
-    public static ByteBuffer encode(byte[] body, byte opCode) {
+    public static ByteBuffer encode(byte[] body, byte opCode) { return encode(body, opCode, false); }
+
+
+    /**
+     * 编码
+     * @param body 消息
+     * @param opCode 1: 文本, 2: 二进制 ...
+     * @param rsv1 permessage-deflate 压缩的消息
+     */
+    static ByteBuffer encode(byte[] body, byte opCode, boolean rsv1) {
         ByteBuffer buf;
-        byte header0 = (byte) (0x8f & (opCode | 0xf0));
+        byte header0 = (byte) (0x80 | (rsv1 ? 0x40 : 0) | (opCode & 0x0f));
         if (body.length < 126) {
             buf = ByteBuffer.allocate(2 + body.length);
             buf.put(header0);
@@ -92,4 +482,29 @@ public class WebSocket {
     public HttpAioSession getSession() {
         return session;
     }
+
+
+    /**
+     * 发送队列中的一帧
+     */
+    protected static class Frame {
+        final ByteBuffer buf;
+        /**
+         * 可合并的 key. 可为 null
+         */
+        final String     key;
+        /**
+         * 控制帧不丢弃
+         */
+        final boolean    control;
+
+        Frame(ByteBuffer buf, String key, boolean control) {
+            this.buf = buf;
+            this.key = key;
+            this.control = control;
+        }
+
+        @Override
+        public String toString() { return "Frame[" + buf.remaining() + " bytes" + (key == null ? "" : ", key: " + key) + "]"; }
+    }
 }
@@ -1,140 +1,256 @@
 package cn.xnatural.http;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * web socket 解码器
+ * 增量解码: 帧头不完整时等待后续数据, 帧数据边接收边解掩码, 不要求整帧在接收缓冲区内
+ * 分片消息(FIN, 继续帧)组装到池化的分段缓冲, 完整后回调 {@link WsListener}
+ * ping 自动回复 pong, close 回复 close 后关闭. 协商了 permessage-deflate 时解压 RSV1 消息 {@link WsDeflate}
+ * 属性 ws.maxFrameSize: 单帧最大长度. 默认 4M; ws.maxMessageSize: 组装后消息最大长度. 默认 16M
  */
 public class WsDecoder {
+    /**
+     * 分段缓冲大小
+     */
+    protected static final int           SEGMENT     = 1024 * 64;
+    /**
+     * 分段缓冲池最多保留的段数
+     */
+    protected static final int           POOL_MAX    = 256;
+    protected static final Queue<byte[]> POOL        = new ConcurrentLinkedQueue<>();
+    protected static final AtomicInteger POOL_SIZE   = new AtomicInteger();
     final WebSocket ws;
-    // 当前正在被解码的消息
-    protected WsMsg curMsg;
+    // 当前帧头
+    protected boolean headComplete;
+    protected boolean fin;
+    protected byte    opCode;
+    protected boolean hasMask;
+    protected final byte[] mask = new byte[4];
+    protected long    payloadLength;
+    // 当前帧已接收的数据长度
+    protected long    received;
+    // 控制帧数据(最多125字节)
+    protected byte[]  control;
+    // 正在组装的分片消息
+    protected Message message;
 
     WsDecoder(WebSocket ws) { this.ws = ws; }
 
 
-
     /**
-     * 接收消息
-     * 解码参考自: tio WsServerDecoder
-     * @param buf
+     * 接收数据: 解码所有完整的部分, 剩余不完整的帧头留在 buf 中
+     * @param buf 接收缓冲
      */
     public void decode(ByteBuffer buf) throws Exception {
-        if (curMsg == null) curMsg = new WsMsg();
-        if (!curMsg.headComplete) curMsg.headComplete = head(buf);
-        if (!curMsg.headComplete) return;
+        while (buf.hasRemaining() && ws.session != null) {
+            if (!headComplete && !head(buf)) return;
+            int n = (int) Math.min(buf.remaining(), payloadLength - received);
+            if (control != null) {
+                buf.get(control, (int) received, n);
+                unmask(control, (int) received, n, received);
+            } else if (n > 0) {
+                message.append(buf, n, this);
+            }
+            received += n;
+            if (received == payloadLength) frame();
+        }
+    }
+
+
+    /**
+     * 解析帧头. 数据不够时不读取
+     * @param buf 接收缓冲
+     * @return true: 帧头解析完成
+     */
+    protected boolean head(ByteBuffer buf) {
+        if (buf.remaining() < 2) return false;
+        int start = buf.position();
+        byte first = buf.get(start), second = buf.get(start + 1);
+        int len7 = second & 0x7F;
+        boolean masked = (second & 0x80) != 0; // 客户端发出的数据帧需要掩码
+        int headLength = 2 + (len7 == 126 ? 2 : len7 == 127 ? 8 : 0) + (masked ? 4 : 0);
+        if (buf.remaining() < headLength) return false;
+        buf.position(start + 2);
 
-        if (buf.remaining() < curMsg.payloadLength) return;
+        fin = (first & 0x80) != 0;
+        opCode = (byte) (first & 0x0F);
+        int rsv = first & 0x70;
+        boolean compressed = rsv == 0x40 && ws.deflate != null && (opCode == 1 || opCode == 2); // RSV1: permessage-deflate
+        if (rsv != 0 && !compressed) throw new RuntimeException("Web socket rsv bits not supported");
+        hasMask = masked;
+        if (len7 == 126) payloadLength = buf.getShort() & 0xFFFF;
+        else if (len7 == 127) payloadLength = buf.getLong();
+        else payloadLength = len7;
+        if (hasMask) buf.get(mask);
+        received = 0;
 
-        byte[] msgBs = new byte[curMsg.payloadLength];
-        buf.get(msgBs);
-        if (curMsg.hasMask) {
-            for (int i = 0; i < msgBs.length; i++) {
-                msgBs[i] = (byte) (msgBs[i] ^ curMsg.mask[i % 4]);
+        // CONTINUATION(0), TEXT(1), BINARY(2), CLOSE(8), PING(9), PONG(10)
+        if (opCode >= 8) { // 控制帧: 不能分片, 最多125字节
+            if (opCode > 10) throw new RuntimeException("Web socket unknown opCode: " + opCode);
+            if (!fin || payloadLength > 125) throw new RuntimeException("Web socket control frame must not be fragmented or > 125 bytes");
+            control = new byte[(int) payloadLength];
+        } else {
+            if (opCode > 2) throw new RuntimeException("Web socket unknown opCode: " + opCode);
+            control = null;
+            long maxFrame = ws.session.server.getLong("ws.maxFrameSize", 1024 * 1024 * 4L);
+            if (payloadLength < 0 || payloadLength > maxFrame) {
+                throw new RuntimeException("Web socket frame length(" + payloadLength + ") > ws.maxFrameSize(" + maxFrame + ")");
+            }
+            if (opCode == 0) {
+                if (message == null) throw new RuntimeException("Web socket continuation frame without message");
+            } else {
+                if (message != null) throw new RuntimeException("Web socket new message before previous finished");
+                message = new Message(opCode);
+                message.compressed = compressed;
+            }
+            long maxMessage = ws.session.server.getLong("ws.maxMessageSize", 1024 * 1024 * 16L);
+            if (message.length + payloadLength > maxMessage) {
+                throw new RuntimeException("Web socket message length(" + (message.length + payloadLength) + ") > ws.maxMessageSize(" + maxMessage + ")");
             }
         }
+        headComplete = true;
+        return true;
+    }
+
 
-        WsMsg msg = curMsg; curMsg = null;
-        if (msg.opCode == (byte) 1) {
-          if (ws.listener != null) {
-              ws.listener.onText(new String(msgBs, ws.session.server.getCharset()));
-          }
-        } else if (msg.opCode == (byte) 2) {
-            if (ws.listener != null) {
-                ws.listener.onBinary(msgBs);
+    /**
+     * 一帧接收完成
+     */
+    protected void frame() throws Exception {
+        headComplete = false;
+        if (control != null) {
+            byte[] data = control; control = null;
+            if (opCode == 8) { // 回复 close 后关闭
+                ws.control(WebSocket.encode(data.length >= 2 ? new byte[]{data[0], data[1]} : new byte[0], (byte) 8));
+                ws.closeAfterFlush();
+            } else if (opCode == 9) {
+                ws.control(WebSocket.encode(data, (byte) 10));
             }
+            // pong: 只更新连接活跃时间(接收时已更新)
+            return;
         }
-
-        if (buf.hasRemaining()) { // 如果还有剩余, 则继续解码
-            decode(buf);
+        if (!fin) return;
+        Message msg = message; message = null;
+        if (msg.compressed) {
+            Message inflated = ws.deflate.inflate(msg, ws.session.server.getLong("ws.maxMessageSize", 1024 * 1024 * 16L));
+            msg.release();
+            msg = inflated;
         }
+        ws.dispatch(msg);
     }
 
 
     /**
-     * 解析消息头
-     * @param buf
-     * @return true: 消息头解析完成
+     * 解掩码: 对齐到掩码起始后每次异或一个 long
+     * @param bs 数据
+     * @param off 开始位置
+     * @param len 长度
+     * @param maskPos 数据在帧中的偏移
      */
-    protected boolean head(ByteBuffer buf) {
-        // 第一阶段解析
-        int initPosition = buf.position();
-        curMsg.readableLength = buf.limit() - initPosition;
-        curMsg.headLength = 2;
-        if (curMsg.readableLength < curMsg.headLength + 12) return false;
-
-        byte first = buf.get();
-        //	int b = first & 0xFF; //转换成32位
-        boolean fin = (first & 0x80) > 0; // 得到第8位 10000000>0
-        int rsv = (first & 0x70) >>> 4; // 得到5、6、7 为01110000 然后右移四位为00000111
-        curMsg.opCode = (byte) (first & 0x0F); // 后四位为opCode 00001111
-        // NOT_FIN((byte) 0), TEXT((byte) 1), BINARY((byte) 2), CLOSE((byte) 8), PING((byte) 9), PONG((byte) 10);
-        if (curMsg.opCode == (byte) 0) {
+    protected void unmask(byte[] bs, int off, int len, long maskPos) {
+        if (!hasMask) return;
+        int i = 0;
+        for (; i < len && ((maskPos + i) & 3) != 0; i++) bs[off + i] ^= mask[(int) ((maskPos + i) & 3)];
+        if (len - i >= 8) {
+            long m = (mask[0] & 0xFFL) << 24 | (mask[1] & 0xFFL) << 16 | (mask[2] & 0xFFL) << 8 | (mask[3] & 0xFFL);
+            m |= m << 32;
+            ByteBuffer bb = ByteBuffer.wrap(bs);
+            for (; i + 8 <= len; i += 8) bb.putLong(off + i, bb.getLong(off + i) ^ m);
+        }
+        for (; i < len; i++) bs[off + i] ^= mask[(int) ((maskPos + i) & 3)];
+    }
 
-        } else if (curMsg.opCode == (byte) 1) {
 
-        } else if (curMsg.opCode == (byte) 2) {
+    /**
+     * 正在组装的消息: 由池中固定大小的段组成
+     */
+    protected static class Message {
+        final byte           opCode;
+        final List<byte[]>   segments = new ArrayList<>(2);
+        int                  length;
+        /**
+         * permessage-deflate 压缩的消息(第一帧 RSV1)
+         */
+        boolean              compressed;
 
-        } else if (curMsg.opCode == (byte) 8) {
-            ws.close();
-            return true;
-        } else if (curMsg.opCode == (byte) 9) {
+        Message(byte opCode) { this.opCode = opCode; }
 
-        } else if (curMsg.opCode == (byte) 10) {
 
+        /**
+         * 从接收缓冲追加 n 字节并解掩码
+         */
+        void append(ByteBuffer buf, int n, WsDecoder decoder) {
+            long maskPos = decoder.received;
+            while (n > 0) {
+                int off = length % SEGMENT;
+                byte[] seg = segment(off);
+                int k = Math.min(n, SEGMENT - off);
+                buf.get(seg, off, k);
+                decoder.unmask(seg, off, k, maskPos);
+                maskPos += k; length += k; n -= k;
+            }
         }
-        curMsg.second = buf.get(); // 向后读取一个字节
-        curMsg.hasMask = (curMsg.second & 0xFF) >> 7 == 1; // 用于标识PayloadData是否经过掩码处理。如果是1，Masking-key域的数据即是掩码密钥，用于解码PayloadData。客户端发出的数据帧需要进行掩码处理，所以此位是1。
 
-        // Client data must be masked
-        if (!curMsg.hasMask) { // 第9为为mask,必须为1
-            // throw new AioDecodeException("websocket client data must be masked");
-        } else {
-            curMsg.headLength += 4;
+
+        /**
+         * 追加 n 字节(解压后的数据)
+         */
+        void append(byte[] bs, int n) {
+            for (int pos = 0; pos < n; ) {
+                int off = length % SEGMENT;
+                byte[] seg = segment(off);
+                int k = Math.min(n - pos, SEGMENT - off);
+                System.arraycopy(bs, pos, seg, off, k);
+                pos += k; length += k;
+            }
         }
 
-        curMsg.payloadLength = curMsg.second & 0x7F; // 读取后7位  Payload legth，如果<126则payloadLength
 
-        if (curMsg.payloadLength == 126) { // 为126读2个字节，后两个字节为payloadLength
-            curMsg.headLength += 2;
-            if (curMsg.readableLength < curMsg.headLength) { return false; }
-            // payloadLength = ByteBufferUtils.readUB2WithBigEdian(buf);
-            curMsg.payloadLength = (buf.get() & 0xff) << 8;
-            curMsg.payloadLength |= buf.get() & 0xff;
-            // log.info("{} payloadLengthFlag: 126，payloadLength {}", channelContext, payloadLength);
+        /**
+         * 当前写入的段: 上一段已满时从池中取新段
+         */
+        protected byte[] segment(int off) {
+            if (off == 0) {
+                byte[] seg = POOL.poll();
+                if (seg == null) seg = new byte[SEGMENT];
+                else POOL_SIZE.decrementAndGet();
+                segments.add(seg);
+            }
+            return segments.get(segments.size() - 1);
+        }
 
-        } else if (curMsg.payloadLength == 127) { // 127读8个字节,后8个字节为payloadLength
-            curMsg.headLength += 8;
-            if (curMsg.readableLength < curMsg.headLength) { return false; }
 
-            curMsg.payloadLength = (int) buf.getLong();
-            // log.info("{} payloadLengthFlag: 127，payloadLength {}", channelContext, payloadLength);
+        byte[] bytes() {
+            byte[] bs = new byte[length];
+            for (int i = 0, pos = 0; i < segments.size(); i++, pos += SEGMENT) {
+                System.arraycopy(segments.get(i), 0, bs, pos, Math.min(SEGMENT, length - pos));
+            }
+            return bs;
         }
 
-        if (curMsg.payloadLength < 0 || curMsg.payloadLength > 1024 * 512) {
-            throw new RuntimeException("body length(" + curMsg.payloadLength + ") is not right");
-        }
-        if (curMsg.hasMask) {
-            curMsg.mask = new byte[4];
-            buf.get(curMsg.mask);
+
+        String text(HttpServer server) {
+            if (segments.isEmpty()) return "";
+            if (segments.size() == 1) return new String(segments.get(0), 0, length, server.getCharset());
+            return new String(bytes(), server.getCharset());
         }
-        curMsg.headComplete = true;
-        return true;
-    }
 
 
-    /**
-     * websocket 消息
-     */
-    protected class WsMsg {
-        byte first;
-        byte second;
-        int headLength;
-        int readableLength;
-        byte opCode;
-        boolean hasMask;
-        byte[] mask;
-        int payloadLength;
-        boolean headComplete;
+        /**
+         * 段放回池中
+         */
+        void release() {
+            for (byte[] seg : segments) {
+                if (POOL_SIZE.incrementAndGet() <= POOL_MAX) POOL.offer(seg);
+                else POOL_SIZE.decrementAndGet();
+            }
+            segments.clear();
+        }
     }
 }
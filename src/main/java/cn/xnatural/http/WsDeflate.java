@@ -0,0 +1,195 @@
+package cn.xnatural.http;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * WebSocket permessage-deflate 扩展(RFC 7692)
+ * 属性 ws.deflate: 是否协商. 默认 true; ws.deflate.minSize: 最小压缩长度. 默认 256;
+ * ws.deflate.contextTakeover: 是否跨消息保留压缩上下文. 默认 false
+ * <pre>
+ * 不保留上下文(默认): 响应 server_no_context_takeover, client_no_context_takeover
+ *   每条消息独立压缩, 用线程共享的 {@link Deflater}, 广播时同一份压缩帧发给所有连接
+ *   {@link Inflater} 只在接收压缩消息期间存在
+ * 保留上下文: 每个连接一对 {@link Deflater}/{@link Inflater}, 压缩率更高, 每个连接约多占 300K 内存
+ * </pre>
+ * java.util.zip 只支持 15 位窗口: 请求 server_max_window_bits &lt; 15 的协商项不接受
+ */
+class WsDeflate {
+    protected static final String                NAME   = "permessage-deflate";
+    /**
+     * 每条压缩消息末尾省略的 SYNC_FLUSH 标记
+     */
+    protected static final byte[]                TAIL   = {0, 0, (byte) 0xff, (byte) 0xff};
+    /**
+     * 不保留上下文时共享: 每个线程一个
+     */
+    protected static final ThreadLocal<Deflater> SHARED = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    protected static final ThreadLocal<byte[]>   OUT    = ThreadLocal.withInitial(() -> new byte[1024 * 8]);
+    /**
+     * 服务端每条消息独立压缩
+     */
+    final boolean serverNoContextTakeover;
+    /**
+     * 客户端每条消息独立压缩
+     */
+    final boolean clientNoContextTakeover;
+    final int     level;
+    final int     minSize;
+    /**
+     * 保留上下文时每个连接的压缩器
+     */
+    protected Deflater deflater;
+    protected Inflater inflater;
+    /**
+     * 已关闭 {@link #end()}: 不再创建连接的压缩器
+     */
+    protected boolean  ended;
+
+
+    WsDeflate(boolean serverNoContextTakeover, boolean clientNoContextTakeover, int level, int minSize) {
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        this.level = level;
+        this.minSize = minSize;
+    }
+
+
+    /**
+     * 协商: 按顺序取第一个可接受的 permessage-deflate 协商项
+     * @param offers 请求头 Sec-WebSocket-Extensions
+     * @param server {@link HttpServer}
+     * @return null: 不启用
+     */
+    static WsDeflate negotiate(String offers, HttpServer server) {
+        if (offers == null || !server.getBoolean("ws.deflate", true)) return null;
+        boolean takeover = server.getBoolean("ws.deflate.contextTakeover", false);
+        for (String offer : offers.split(",")) {
+            String[] params = offer.split(";");
+            if (!NAME.equalsIgnoreCase(params[0].trim())) continue;
+            boolean ok = true, serverNoCtx = !takeover;
+            for (int i = 1; i < params.length && ok; i++) {
+                String p = params[i].trim();
+                int eq = p.indexOf('=');
+                String name = (eq < 0 ? p : p.substring(0, eq)).trim().toLowerCase();
+                String value = eq < 0 ? null : p.substring(eq + 1).trim().replace("\"", "");
+                if ("server_no_context_takeover".equals(name)) serverNoCtx = true;
+                else if ("client_no_context_takeover".equals(name)) continue; // 提示: 客户端将不保留上下文
+                else if ("client_max_window_bits".equals(name)) continue; // 15 位窗口的 Inflater 可解压任意窗口
+                else if ("server_max_window_bits".equals(name)) ok = "15".equals(value);
+                else ok = false; // 不认识的参数
+            }
+            if (ok) {
+                return new WsDeflate(serverNoCtx, !takeover, server.getInteger("compress.level", Deflater.DEFAULT_COMPRESSION), server.getInteger("ws.deflate.minSize", 256));
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * @return 响应头 Sec-WebSocket-Extensions
+     */
+    String response() {
+        return NAME + (serverNoContextTakeover ? "; server_no_context_takeover" : "") + (clientNoContextTakeover ? "; client_no_context_takeover" : "");
+    }
+
+
+    /**
+     * 压缩一条消息
+     * 保留上下文时调用方需保证压缩顺序与发送顺序一致
+     */
+    byte[] deflate(byte[] bs) {
+        if (serverNoContextTakeover) return deflate(shared(level), bs);
+        synchronized (this) {
+            if (ended) return deflate(shared(level), bs); // 已关闭, 消息不会发出
+            if (deflater == null) deflater = new Deflater(level, true);
+            return deflate(deflater, bs);
+        }
+    }
+
+
+    /**
+     * 当前线程共享的 {@link Deflater}, 已重置(独立压缩一条消息)
+     * @param level 压缩级别
+     */
+    static Deflater shared(int level) {
+        Deflater deflater = SHARED.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+
+    /**
+     * 压缩: SYNC_FLUSH 结束并去掉末尾的 00 00 ff ff
+     * @param deflater {@link Deflater}
+     * @param bs 消息
+     */
+    static byte[] deflate(Deflater deflater, byte[] bs) {
+        deflater.setInput(bs);
+        byte[] buf = OUT.get();
+        ByteArrayOutputStream os = new ByteArrayOutputStream(Math.max(64, bs.length / 2));
+        for (int n; (n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH)) > 0; ) {
+            os.write(buf, 0, n);
+            if (n < buf.length) break;
+        }
+        byte[] out = os.toByteArray();
+        int len = out.length;
+        if (len >= 4 && out[len - 4] == 0 && out[len - 3] == 0 && out[len - 2] == (byte) 0xff && out[len - 1] == (byte) 0xff) len -= 4;
+        byte[] result = new byte[len];
+        System.arraycopy(out, 0, result, 0, len);
+        return result;
+    }
+
+
+    /**
+     * 解压一条消息
+     * 与 {@link #end()} 互斥: 关闭时不释放正在使用的 {@link Inflater}
+     * @param msg 压缩的消息
+     * @param maxSize 解压后最大长度
+     * @return 解压后的消息
+     */
+    synchronized WsDecoder.Message inflate(WsDecoder.Message msg, long maxSize) throws DataFormatException {
+        if (inflater == null) inflater = new Inflater(true);
+        WsDecoder.Message result = new WsDecoder.Message(msg.opCode);
+        try {
+            for (int i = 0, pos = 0; i < msg.segments.size(); i++, pos += WsDecoder.SEGMENT) {
+                inflate(msg.segments.get(i), Math.min(WsDecoder.SEGMENT, msg.length - pos), result, maxSize);
+            }
+            inflate(TAIL, TAIL.length, result, maxSize);
+        } catch (DataFormatException | RuntimeException ex) {
+            result.release();
+            throw ex;
+        } finally {
+            if (clientNoContextTakeover || ended) { // 不保留上下文: 释放, 下条压缩消息再创建
+                inflater.end(); inflater = null;
+            }
+        }
+        return result;
+    }
+
+
+    protected void inflate(byte[] bs, int len, WsDecoder.Message result, long maxSize) throws DataFormatException {
+        inflater.setInput(bs, 0, len);
+        byte[] buf = OUT.get();
+        while (!inflater.needsInput()) {
+            int n = inflater.inflate(buf);
+            if (n == 0 && (inflater.finished() || inflater.needsDictionary())) break;
+            if (result.length + n > maxSize) throw new RuntimeException("Web socket message length > ws.maxMessageSize(" + maxSize + ")");
+            result.append(buf, n);
+        }
+    }
+
+
+    /**
+     * 关闭时释放
+     */
+    synchronized void end() {
+        ended = true;
+        if (deflater != null) { deflater.end(); deflater = null; }
+        if (inflater != null) { inflater.end(); inflater = null; }
+    }
+}
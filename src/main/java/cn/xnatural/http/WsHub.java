@@ -0,0 +1,165 @@
+package cn.xnatural.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * WebSocket 广播: 按主题(房间)分组, 消息只编码一次
+ * 编码后的帧放在共享的只读直接内存中, 每个订阅者的发送队列放入它的 duplicate
+ * 每个主题的订阅者分片保存, 大量连接同时加入/离开时减少竞争
+ * <pre>
+ *     WsHub hub = new WsHub();
+ *     {@literal @}WS(path = "tick") void tick(WebSocket ws) { hub.join("market", ws); }
+ *     hub.publish("market", "{...}");
+ * </pre>
+ */
+public class WsHub {
+    /**
+     * 主题 -> 订阅者分片
+     */
+    protected final Map<String, Set<WebSocket>[]> topics = new ConcurrentHashMap<>();
+    /**
+     * 每个主题的分片数(2的幂)
+     */
+    protected final int                           shards;
+
+
+    public WsHub() { this(Runtime.getRuntime().availableProcessors() * 2); }
+
+
+    /**
+     * 创建
+     * @param shards 每个主题的订阅者分片数. 向上取2的幂
+     */
+    public WsHub(int shards) {
+        int n = 1;
+        while (n < shards) n <<= 1;
+        this.shards = n;
+    }
+
+
+    /**
+     * 加入主题. 连接关闭时自动离开
+     * @param topic 主题
+     * @param ws {@link WebSocket}
+     */
+    public WsHub join(String topic, WebSocket ws) {
+        shard(topics.computeIfAbsent(topic, k -> newShards()), ws).add(ws);
+        ws.onClose(() -> leave(topic, ws));
+        return this;
+    }
+
+
+    /**
+     * 离开主题
+     * @param topic 主题
+     * @param ws {@link WebSocket}
+     */
+    public WsHub leave(String topic, WebSocket ws) {
+        Set<WebSocket>[] subscribers = topics.get(topic);
+        if (subscribers != null) shard(subscribers, ws).remove(ws);
+        return this;
+    }
+
+
+    /**
+     * 广播文本消息(UTF-8)
+     * @param topic 主题
+     * @param msg 消息
+     * @return 发送的连接数
+     */
+    public int publish(String topic, String msg) { return publish(topic, null, msg); }
+
+
+    /**
+     * 广播可合并的文本消息(UTF-8): 慢连接的队列中只保留同 key 最新的消息 {@link WebSocket.Overflow#COALESCE}
+     * @param topic 主题
+     * @param key 例: 行情代码
+     * @param msg 消息
+     * @return 发送的连接数
+     */
+    public int publish(String topic, String key, String msg) {
+        Set<WebSocket>[] subscribers = topics.get(topic);
+        if (subscribers == null) return 0;
+        return publish(subscribers, msg.getBytes(StandardCharsets.UTF_8), (byte) 1, key);
+    }
+
+
+    /**
+     * 广播二进制消息
+     * @param topic 主题
+     * @param msg 消息
+     * @return 发送的连接数
+     */
+    public int publish(String topic, byte[] msg) {
+        Set<WebSocket>[] subscribers = topics.get(topic);
+        if (subscribers == null) return 0;
+        return publish(subscribers, msg, (byte) 2, null);
+    }
+
+
+    /**
+     * 同一帧放入所有订阅者的发送队列(不等待写出)
+     * 协商了 permessage-deflate 且不保留上下文的连接共享同一份压缩帧, 保留上下文的连接各自压缩
+     */
+    protected int publish(Set<WebSocket>[] subscribers, byte[] body, byte opCode, String key) {
+        ByteBuffer plain = null, deflated = null;
+        int count = 0;
+        for (Set<WebSocket> shard : subscribers) {
+            for (WebSocket ws : shard) {
+                WsDeflate d = ws.deflate;
+                boolean ok;
+                if (d == null || body.length < d.minSize) {
+                    if (plain == null) plain = frame(body, opCode, false);
+                    ok = ws.write(plain.duplicate(), key);
+                } else if (d.serverNoContextTakeover) {
+                    if (deflated == null) deflated = frame(WsDeflate.deflate(WsDeflate.shared(d.level), body), opCode, true);
+                    ok = ws.write(deflated.duplicate(), key);
+                } else ok = ws.send(body, opCode, key);
+                if (ok) count++;
+                else if (ws.session == null) shard.remove(ws);
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * @param topic 主题
+     * @return 主题的订阅数
+     */
+    public int size(String topic) {
+        Set<WebSocket>[] subscribers = topics.get(topic);
+        if (subscribers == null) return 0;
+        int size = 0;
+        for (Set<WebSocket> shard : subscribers) size += shard.size();
+        return size;
+    }
+
+
+    /**
+     * 编码为共享的只读帧
+     */
+    protected static ByteBuffer frame(byte[] body, byte opCode, boolean rsv1) {
+        ByteBuffer encoded = WebSocket.encode(body, opCode, rsv1);
+        ByteBuffer frame = ByteBuffer.allocateDirect(encoded.remaining()).put(encoded);
+        frame.flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+
+    protected Set<WebSocket> shard(Set<WebSocket>[] subscribers, WebSocket ws) {
+        return subscribers[System.identityHashCode(ws) & (subscribers.length - 1)];
+    }
+
+
+    @SuppressWarnings("unchecked")
+    protected Set<WebSocket>[] newShards() {
+        Set<WebSocket>[] arr = (Set<WebSocket>[]) new Set<?>[shards];
+        for (int i = 0; i < arr.length; i++) arr[i] = ConcurrentHashMap.newKeySet();
+        return arr;
+    }
+}
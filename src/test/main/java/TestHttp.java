@@ -27,6 +27,7 @@ public class TestHttp {
         );
         Map<String, Object> attrs = new HashMap<>();
         attrs.put("hp", ":7070");
+        attrs.put("throttle./test/download/:fName", 1024 * 1024); // 下载限速 1M/s
 
         HttpServer server = new HttpServer(attrs, exec).buildChain((chain -> {
             // 手动自定义添加接口
@@ -0,0 +1,53 @@
+package cn.xnatural.http;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.Arrays;
+
+/**
+ * {@link Invoker} 和 反射调用({@link Method#invoke(Object, Object...)}) 性能对比
+ */
+public class InvokerBench {
+
+    public static class BenchCtrl {
+        String get(Integer p1, String p2, HttpContext ctx) { return p2; }
+    }
+
+
+    public static void main(String[] args) throws Throwable {
+        HttpServer server = new HttpServer();
+        HttpRequest request = new HttpRequest(new HttpAioSession(AsynchronousSocketChannel.open(), server));
+        request.method = "GET";
+        request.rowUrl = "/get?p1=1&p2=bench";
+        HttpContext hCtx = new HttpContext(request, server, c -> null);
+
+        BenchCtrl ctrl = new BenchCtrl();
+        Method method = BenchCtrl.class.getDeclaredMethod("get", Integer.class, String.class, HttpContext.class);
+        method.setAccessible(true);
+        Parameter[] ps = method.getParameters();
+        Invoker invoker = new Invoker(server, ctrl, CtrlRoutes.Mapping.filter("get", null, 0, false, new String[]{"p1", "p2", "ctx"}, method.getParameterTypes(), method.getGenericParameterTypes(), Invoker.stub(method)));
+
+        int rounds = 5, count = 2_000_000;
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                try {
+                    method.invoke(ctrl, Arrays.stream(ps).map((p) -> hCtx.param(p.getName(), p.getType())).toArray());
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            }
+            long reflect = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                invoker.invoke(hCtx);
+            }
+            long invoke = System.nanoTime() - start;
+            System.out.println("round " + r + ": reflect " + (reflect / count) + " ns/op, invoker " + (invoke / count) + " ns/op");
+        }
+        server.exec.shutdown();
+    }
+}
@@ -5,12 +5,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static cn.xnatural.http.ApiResp.ok;
 
@@ -34,6 +42,11 @@ public class TestCtrl {
         log.info("filter2 ============");
     }
 
+    @Filter(path = "upload")
+    void uploadFilter(HttpContext ctx) {
+        log.info("uploadFilter ============");
+    }
+
     public void wsMsgBroadcast(String msg) {
         wss.forEach(ws -> ws.send(msg));
     }
@@ -87,6 +100,18 @@ public class TestCtrl {
     }
     
 
+    // json body 对象参数
+    @Path(path = "dto", consumer = "application/json")
+    ApiResp dto(Dto dto) {
+        return ok(dto);
+    }
+
+    public static class Dto {
+        public String name;
+        public Integer age;
+    }
+    
+
     // 接收post string
     @Path(path = "string")
     ApiResp string(HttpContext ctx) {
@@ -103,6 +128,87 @@ public class TestCtrl {
     }
 
 
+    // 异步响应: 不占用线程等待
+    @Path(path = "future")
+    CompletableFuture<ApiResp> future(String p1) {
+        return CompletableFuture.supplyAsync(() -> ok("p1: " + p1));
+    }
+
+
+    // 流式响应: 边生成边发送
+    @Path(path = "csv")
+    void csv(Integer rows, HttpContext ctx) throws Exception {
+        ctx.response.header("Content-Disposition", "attachment;filename=rows.csv");
+        try (ResponseStream os = ctx.stream("text/csv;charset=utf-8")) {
+            Writer w = os.writer();
+            w.write("id,name,time\n");
+            for (int i = 1, n = rows == null ? 10 : rows; i <= n; i++) {
+                w.write(i + ",name" + i + "," + System.currentTimeMillis() + "\n");
+                if (i % 1000 == 0) w.flush();
+            }
+        }
+    }
+
+
+    // 逐个元素发送 json 数组: 不在内存中生成完整列表
+    @Path(path = "rows")
+    Stream<Map<String, Object>> rows(Integer n) {
+        return IntStream.rangeClosed(1, n == null ? 10 : n).mapToObj(i -> {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("id", i);
+            row.put("name", "name" + i);
+            return row;
+        });
+    }
+
+
+    // 逐行发送 NDJSON
+    @Path(path = "rows.ndjson", produce = "application/x-ndjson")
+    Iterator<Integer> rowsNd(Integer n) {
+        return IntStream.rangeClosed(1, n == null ? 10 : n).iterator();
+    }
+
+
+    // 连接写出速度, 分块大小
+    @Path(path = "connections")
+    ApiResp connections(HttpServer server) {
+        return ok(server.getConnections().stream().map(se -> se.getRemoteAddress() + " rate: " + se.getWriteRate() + "B/s, chunk: " + se.getChunkSize()).collect(Collectors.toList()));
+    }
+
+
+    // 自动 ETag: 内容不变时响应 304
+    @Path(path = "dashboard", etag = true)
+    ApiResp dashboard() {
+        return ok(hub.size());
+    }
+
+
+    // Server-Sent Events: 订阅
+    static final SseHub hub = new SseHub(100);
+    @Path(path = "events")
+    void events(SseEmitter emitter) { hub.subscribe(emitter); }
+
+
+    // Server-Sent Events: 广播
+    @Path(path = "publish")
+    ApiResp publish(String msg) {
+        return ok(hub.publish("msg", msg));
+    }
+
+
+    // WebSocket 主题订阅
+    static final WsHub wsHub = new WsHub();
+    @WS(path = "tick")
+    void tick(WebSocket ws) { wsHub.join("tick", ws); }
+
+
+    // WebSocket 主题广播: 只编码一次
+    @Path(path = "tick/publish")
+    ApiResp tickPublish(String msg) {
+        return ok(wsHub.publish("tick", msg));
+    }
+
+
     // 测试登录
     @Path(path = "login")
     ApiResp login(String username, HttpContext ctx) {